@@ -9,15 +9,18 @@ When reading the hex output, though, don't forget that AES is column-major
 and the example state arrays need to be read in that way. 
 
 Furthermore, this program uses no precomputed lookup tables. 
-Everything is generated algorithmically. */
+Everything is generated algorithmically. That's the "reference" BlockEngine;
+by default the byte[] modes below use the JDK's hardware-accelerated AES for
+the blocks instead, see BlockEngines.java. The verbose paths always use our own. */
 
 package aes128;
 
 import java.nio.charset.Charset;
-import java.security.SecureRandom;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.Scanner; 
+import java.util.zip.DataFormatException;
 public class AES128 
 {
     public static void main(String[] args) 
@@ -132,74 +135,118 @@ public class AES128
         
         byte[] utf8 = plaintext.getBytes(Charset.forName("UTF-8"));
         // utf-8 is luckily fully supported in java, so no need to manually encode/decode
-
-        int numBlocks = utf8.length / 16 + 1;
-        int toPad = (numBlocks * 16) - utf8.length;
-
-        // Now to turn the string of plaintext into an array of state arrays
-        StateArray[] allBlocks = new StateArray[numBlocks + 1]; // + 1 because of IV
-        String temp = "";
-        for(int i = 0; i < numBlocks; i++)
+        return encryptBytes(utf8, key, verboseMode);
+    }
+    
+    public static String encrypt(String plaintext, Key key, boolean verboseMode, Compression compression)
+    {
+        /* Same as above, except the plaintext may be compressed before it's encrypted.
+         * Text like JSON or logs often shrinks 5-10x, and that means 5-10x fewer blocks
+         * to encrypt (and store, and send). The result starts with one extra header
+         * byte (2 hex chars) whose flags say whether the payload was compressed.
+         * decrypt() spots the header because the length is no longer a multiple of 16 bytes.
+         * Pass null as compression to get the header without ever compressing.
+         * Careful: compression makes the ciphertext length depend on the CONTENT of
+         * the plaintext, which can leak secrets if an attacker controls part of it. */
+        byte[] utf8 = plaintext.getBytes(Charset.forName("UTF-8"));
+        int flags = 0;
+        if(compression != null && compression.worthTrying(utf8.length))
         {
-            for(int j = 0; j < 16; j++)
+            byte[] deflated = compression.deflate(utf8);
+            // don't bother if it barely shrinks, e.g. random or already compressed data
+            if(compression.worthKeeping(utf8.length, deflated.length))
             {
-                // If all plaintext has been added to the state arrays and it does not perfectly fill a 4x4 array
-                if(toPad != 0 && (i * 16 + j) >= utf8.length)
-                {
-                    // PKCS#7 padding
-                    // E.g. if 10 chars to pad, pad with "0A", if 9, "09", etc
-                    // Hexadecimal works nicely for this because there are 16 chars
-                    String paddingChar = Integer.toString(toPad, 16);
-                    
-                    if(paddingChar.length() == 1)
-                    {
-                        // prefix 0 so that it becomes 08 instead of just 8
-                        // otherwise there would not be 8 8's
-                        temp += "0" + paddingChar;
-                    } else
-                    {
-                        temp += paddingChar;   
-                    }
-                // If there still is plaintext to add, add it as a hex string
-                // The ByteMatrix class just needs things to be in hex to work properly
-                } else 
-                {
-                    temp += Integer.toString(Byte.toUnsignedInt(utf8[i * 16 + j]), 16);
-                }                    
+                utf8 = deflated;
+                flags |= Compression.FLAG_COMPRESSED;
             }
-            allBlocks[i + 1] = new StateArray(temp);
-            temp = "";
         }
-                
-        // here we generate the initialization vector and prefix it
-        // to the state arrays
-        SecureRandom rand = new SecureRandom();
-        byte[] iv = new byte[16];
-        rand.nextBytes(iv);
+        String header = Integer.toString(flags, 16);
+        return (header.length() == 1 ? "0" + header : header) + encryptBytes(utf8, key, verboseMode);
+    }
+    
+    private static String encryptBytes(byte[] data, Key key, boolean verboseMode)
+    {
+        int numBlocks = data.length / 16 + 1;
+        int toPad = (numBlocks * 16) - data.length;
+        
+        // PKCS#7 padding
+        // E.g. if 10 bytes to pad, pad with ten 0x0A bytes, if 9, nine 0x09, etc
+        // There's always at least one byte of padding, so decrypt() knows what to strip
+        byte[] padded = new byte[numBlocks * 16];
+        System.arraycopy(data, 0, padded, 0, data.length);
+        for(int i = data.length; i < padded.length; i++)
+        {
+            padded[i] = (byte)toPad;
+        }
+
+        // here we generate the initialization vector, which goes in front of the ciphertext
+        // (from our own CTR_DRBG, see CtrDrbg.java - much cheaper than a new SecureRandom each time)
+        byte[] iv = CtrDrbg.nextIv();
+        
+        if(!verboseMode)
+        {
+            // the fast path: the same CBC, through whichever BlockEngine is selected
+            encryptCBCBlocks(key, iv.clone(), padded, 0, padded.length);
+            return toHex(iv) + toHex(padded);
+        }
+        
+        // Now to turn the padded bytes into an array of state arrays,
+        // so every step of every block can be printed
+        StateArray[] allBlocks = new StateArray[numBlocks + 1]; // + 1 because of IV
         allBlocks[0] = new StateArray(iv);
+        for(int i = 0; i < numBlocks; i++)
+        {
+            allBlocks[i + 1] = new StateArray(new byte[16]);
+            allBlocks[i + 1].load(padded, i * 16);
+        }
                 
         // now begin CBC rounds - this is the "meat" of the process
         for(int i = 1; i < allBlocks.length; i++)
         {
             allBlocks[i].xor(allBlocks[i - 1]);
-            if(verboseMode)
-            {
-                allBlocks[i].encryptVerbose(key);   
-            } else
-            {
-                allBlocks[i].encrypt(key);   
-            }
+            allBlocks[i].encryptVerbose(key);
         }
         
-        String str = "";
+        StringBuilder str = new StringBuilder();
         for (StateArray block : allBlocks) {
-            str += block.toHexString();
+            str.append(block.toHexString());
         }
                 
-        return str;
+        return str.toString();
     }
     
     public static String decrypt(String ciphertext, Key key, boolean verboseMode)
+    {
+        int flags = 0;
+        if(ciphertext.length() % 32 == 2)
+        {
+            // header byte written by encrypt(..., Compression)
+            flags = Integer.parseInt(ciphertext.substring(0, 2), 16);
+            ciphertext = ciphertext.substring(2);
+        }
+        byte[] utf8 = decryptBytes(ciphertext, key, verboseMode);
+        if(utf8 == null)
+        {
+            return null;
+        }
+        if((flags & Compression.FLAG_COMPRESSED) != 0)
+        {
+            try
+            {
+                utf8 = Compression.inflate(utf8);
+            } catch(DataFormatException e)
+            {
+                System.out.println("ERROR: Invalid compressed data.");
+                return null;
+            }
+        }
+        // obscure usage of the String constructor to decode
+        String decoded = new String(utf8, Charset.forName("UTF-8"));
+        
+        return decoded;
+    }
+    
+    private static byte[] decryptBytes(String ciphertext, Key key, boolean verboseMode)
     {
         // Because it's hex, 32 characters = 16 bytes
         int numBlocks = ciphertext.length() / 32;
@@ -208,6 +255,42 @@ public class AES128
             System.out.println("ERROR: Invalid ciphertext length.");
             return null;
         }
+        
+        // byte array temp is the array of UTF-8 bytes, and will be
+        // decoded into characters after decryption. unfortunately, in java the utf-8 MUST
+        // be stored in a byte[]
+        byte[] temp;
+        if(verboseMode)
+        {
+            temp = decryptVerbose(ciphertext, numBlocks, key);
+        } else
+        {
+            // the fast path, through the selected BlockEngine
+            byte[] chain = fromHex(ciphertext.substring(0, 32)); // the IV
+            temp = fromHex(ciphertext.substring(32, 32 * numBlocks));
+            decryptCBCBlocks(key, chain, temp, 0, temp.length);
+        }
+        
+        // this checks if the padding is valid - otherwise something was wrong with key or ciphertext
+        if(temp.length - Byte.toUnsignedInt(temp[temp.length - 1]) < 0)
+        {
+            System.out.println("ERROR: Invalid ciphertext.");
+            return null;
+        }
+        // previously we could not know the exact length of the byte array
+        // because it still had padding characters. it needs to be the exact
+        // length for the java conversion method, so we make a new byte[]
+        byte[] utf8 = new byte[temp.length - Byte.toUnsignedInt(temp[temp.length - 1])];
+        for(int i = 0; i < utf8.length; i++)
+        {
+            utf8[i] = temp[i];
+        }
+        return utf8;
+    }
+    
+    private static byte[] decryptVerbose(String ciphertext, int numBlocks, Key key)
+    {
+        // The same CBC decryption done one StateArray at a time, printing every step
         StateArray[] allBlocks = new StateArray[numBlocks];
         for(int i = 0; i < numBlocks; i++)
         {
@@ -221,21 +304,12 @@ public class AES128
             copy[i] = new StateArray(allBlocks[i].toHexString());
         }
         
-        // byte array temp is the array of UTF-8 bytes, and will be
-        // decoded into characters after decryption. unfortunately, in java the utf-8 MUST
-        // be stored in a byte[]
         byte[] temp = new byte[16 * (numBlocks - 1)]; // does not include IV
         
         for(int i = 1; i < numBlocks; i++)
         {
             // this is where the actual decryption happens
-            if(verboseMode)
-            {
-                allBlocks[i].decryptVerbose(key);   
-            } else
-            {
-                allBlocks[i].decrypt(key);   
-            }
+            allBlocks[i].decryptVerbose(key);
             allBlocks[i].xor(copy[i - 1]); // remember it's CBC mode; note that allBlocks still has IV
             for(int j = 0; j < 4; j++)
             {
@@ -249,23 +323,265 @@ public class AES128
                 }
             }
         }
-        // this checks if the padding is valid - otherwise something was wrong with key or ciphertext
-        if(temp.length - Byte.toUnsignedInt(temp[temp.length - 1]) < 0)
+        return temp;
+    }
+    
+    private static String toHex(byte[] bytes)
+    {
+        return HexFormat.of().formatHex(bytes);
+    }
+    
+    private static byte[] fromHex(String hex)
+    {
+        return HexFormat.of().parseHex(hex);
+    }
+    
+    /* The methods below work directly on byte arrays instead of hex strings,
+     * so they can be used on large inputs such as files (see FilePipeline).
+     * The blocks themselves are computed by a BlockEngine: by default the one
+     * BlockEngines picked, or the one passed in as the first argument. */
+    
+    public static void encryptBlocks(Key key, byte[] buf, int off, int numBlocks)
+    {
+        encryptBlocks(BlockEngines.get(), key, buf, off, numBlocks);
+    }
+    
+    public static void encryptBlocks(BlockEngine engine, Key key, byte[] buf, int off, int numBlocks)
+    {
+        // Encrypts numBlocks independent blocks in place (no chaining at all).
+        // Handing the cipher many blocks at once is what lets callers like
+        // EncryptionService batch up small messages.
+        engine.encryptBlocks(key, buf, off, buf, off, numBlocks);
+    }
+    
+    public static void decryptBlocks(Key key, byte[] buf, int off, int numBlocks)
+    {
+        decryptBlocks(BlockEngines.get(), key, buf, off, numBlocks);
+    }
+    
+    public static void decryptBlocks(BlockEngine engine, Key key, byte[] buf, int off, int numBlocks)
+    {
+        engine.decryptBlocks(key, buf, off, buf, off, numBlocks);
+    }
+    
+    public static void encryptCBCBlocks(Key key, byte[] chain, byte[] buf, int off, int len)
+    {
+        encryptCBCBlocks(BlockEngines.get(), key, chain, buf, off, len);
+    }
+    
+    public static void encryptCBCBlocks(BlockEngine engine, Key key, byte[] chain, byte[] buf, int off, int len)
+    {
+        // len must be a multiple of 16. chain holds the previous ciphertext block
+        // (or the IV) and is updated, so a long message can be fed in one piece at a time.
+        for(int i = off; i < off + len; i += 16)
+        {
+            for(int j = 0; j < 16; j++)
+            {
+                buf[i + j] ^= chain[j];
+            }
+            engine.encryptBlocks(key, buf, i, buf, i, 1);
+            System.arraycopy(buf, i, chain, 0, 16);
+        }
+    }
+    
+    public static void decryptCBCBlocks(Key key, byte[] chain, byte[] buf, int off, int len)
+    {
+        decryptCBCBlocks(BlockEngines.get(), key, chain, buf, off, len);
+    }
+    
+    public static void decryptCBCBlocks(BlockEngine engine, Key key, byte[] chain, byte[] buf, int off, int len)
+    {
+        // Same as above, but backwards. Unlike encryption, every block can be
+        // decrypted independently, so we decrypt a whole batch at a time and
+        // XOR afterwards. We have to remember the ciphertext of the batch first,
+        // because after decrypting in place it's gone, and each block is XORed
+        // with the ciphertext block before it.
+        CipherContext ctx = CipherContext.get();
+        byte[] saved = ctx.saved;
+        for(int i = off; i < off + len; i += saved.length)
+        {
+            int n = Math.min(saved.length, off + len - i);
+            System.arraycopy(buf, i, saved, 0, n);
+            engine.decryptBlocks(key, buf, i, buf, i, n / 16);
+            for(int j = 0; j < n; j++)
+            {
+                buf[i + j] ^= j < 16 ? chain[j] : saved[j - 16];
+            }
+            System.arraycopy(saved, n - 16, chain, 0, 16);
+        }
+    }
+    
+    public static void cryptCTR(Key key, byte[] iv, long blockIndex, byte[] buf, int off, int len)
+    {
+        cryptCTR(BlockEngines.get(), key, iv, blockIndex, buf, off, len);
+    }
+    
+    public static void cryptCTR(BlockEngine engine, Key key, byte[] iv, long blockIndex, byte[] buf, int off, int len)
+    {
+        /* Counter mode: instead of encrypting the data, we encrypt IV + 0, IV + 1,
+         * IV + 2... and XOR the result (the "keystream") onto the data. Every block
+         * is independent of the others, so any piece of a message can be processed
+         * on its own as long as we know which block number it starts at. This is
+         * also why encryption and decryption are the same operation.
+         * The counters are encrypted a batch at a time in the context's scratch space. */
+        CipherContext ctx = CipherContext.get();
+        byte[] stream = ctx.stream;
+        for(int i = 0; i < len; i += stream.length)
+        {
+            int n = Math.min(stream.length, len - i);
+            int blocks = (n + 15) / 16;
+            for(int b = 0; b < blocks; b++)
+            {
+                setCounter(iv, blockIndex + i / 16 + b, stream, b * 16);
+            }
+            engine.encryptBlocks(key, stream, 0, stream, 0, blocks);
+            for(int j = 0; j < n; j++)
+            {
+                buf[off + i + j] ^= stream[j];
+            }
+        }
+    }
+    
+    private static void setCounter(byte[] iv, long blockIndex, byte[] counter, int off)
+    {
+        // counter = iv + blockIndex, treating both as big-endian 128 bit numbers
+        int carry = 0;
+        for(int i = 15; i >= 0; i--)
+        {
+            int add = i >= 8 ? (int)((blockIndex >>> (8 * (15 - i))) & 0xFF) : 0;
+            int sum = Byte.toUnsignedInt(iv[i]) + add + carry;
+            counter[off + i] = (byte)sum;
+            carry = sum >>> 8;
+        }
+    }
+    
+    public static byte[] gcmEncrypt(Key key, byte[] iv, byte[] aad, byte[] plaintext)
+    {
+        return gcmEncrypt(BlockEngines.get(), key, iv, aad, plaintext);
+    }
+    
+    public static byte[] gcmEncrypt(BlockEngine engine, Key key, byte[] iv, byte[] aad, byte[] plaintext)
+    {
+        /* Galois/Counter Mode. The data is encrypted exactly like counter mode
+         * above, and then a 16 byte authentication tag is computed over the
+         * ciphertext and the "additional authenticated data" (aad), which is
+         * data that is not secret but must not be tampered with. iv must be
+         * 12 bytes and must never be reused with the same key.
+         * Returns ciphertext + tag. */
+        byte[] out = new byte[plaintext.length + 16];
+        System.arraycopy(plaintext, 0, out, 0, plaintext.length);
+        byte[] j0 = gcmCounter(iv);
+        cryptCTR(engine, key, j0, 1, out, 0, plaintext.length); // block 0 is saved for the tag
+        gcmTag(engine, key, j0, aad, out, 0, plaintext.length, out, plaintext.length);
+        return out;
+    }
+    
+    public static byte[] gcmDecrypt(Key key, byte[] iv, byte[] aad, byte[] ciphertext)
+    {
+        return gcmDecrypt(BlockEngines.get(), key, iv, aad, ciphertext);
+    }
+    
+    public static byte[] gcmDecrypt(BlockEngine engine, Key key, byte[] iv, byte[] aad, byte[] ciphertext)
+    {
+        // Returns null if the ciphertext is too short or the tag doesn't match,
+        // which means the key is wrong or the data/aad was modified.
+        if(ciphertext.length < 16)
         {
-            System.out.println("ERROR: Invalid ciphertext.");
             return null;
         }
-        // previously we could not know the exact length of the byte array
-        // because it still had padding characters. it needs to be the exact
-        // length for the java conversion method, so we make a new byte[]
-        byte[] utf8 = new byte[temp.length - Byte.toUnsignedInt(temp[temp.length - 1])];
-        for(int i = 0; i < utf8.length; i++)
+        int len = ciphertext.length - 16;
+        byte[] j0 = gcmCounter(iv);
+        byte[] tag = new byte[16];
+        gcmTag(engine, key, j0, aad, ciphertext, 0, len, tag, 0);
+        int diff = 0;
+        for(int i = 0; i < 16; i++)
         {
-            utf8[i] = temp[i];
+            // compare every byte, so the time taken doesn't reveal where they differ
+            diff |= tag[i] ^ ciphertext[len + i];
         }
-        // obscure usage of the String constructor to decode
-        String decoded = new String(utf8, Charset.forName("UTF-8"));
+        if(diff != 0)
+        {
+            return null;
+        }
+        byte[] plaintext = new byte[len];
+        System.arraycopy(ciphertext, 0, plaintext, 0, len);
+        cryptCTR(engine, key, j0, 1, plaintext, 0, len);
+        return plaintext;
+    }
+    
+    private static byte[] gcmCounter(byte[] iv)
+    {
+        // J0 = IV || 00000001
+        if(iv.length != 12)
+        {
+            throw new IllegalArgumentException("GCM IV must be 12 bytes");
+        }
+        byte[] j0 = new byte[16];
+        System.arraycopy(iv, 0, j0, 0, 12);
+        j0[15] = 1;
+        return j0;
+    }
+    
+    private static void gcmTag(BlockEngine engine, Key key, byte[] j0, byte[] aad, byte[] ct, int off, int len,
+        byte[] tag, int tagOff)
+    {
+        // H is the encryption of an all-zero block, and is the "key" for GHASH
+        byte[] h = new byte[16];
+        engine.encryptBlocks(key, h, 0, h, 0, 1);
+        long hHi = toLong(h, 0);
+        long hLo = toLong(h, 8);
         
-        return decoded;
-    } 
+        long[] y = new long[2];
+        int aadLen = aad == null ? 0 : aad.length;
+        if(aadLen > 0)
+        {
+            ghash(y, hHi, hLo, aad, 0, aadLen);
+        }
+        ghash(y, hHi, hLo, ct, off, len);
+        // last block is the bit lengths of the aad and the ciphertext
+        y[0] ^= (long)aadLen * 8;
+        y[1] ^= (long)len * 8;
+        Poly.gfMult128(y, hHi, hLo);
+        
+        // tag = GHASH XOR E(K, J0)
+        engine.encryptBlocks(key, j0, 0, tag, tagOff, 1);
+        for(int i = 0; i < 8; i++)
+        {
+            tag[tagOff + i] ^= (byte)(y[0] >>> (56 - 8 * i));
+            tag[tagOff + 8 + i] ^= (byte)(y[1] >>> (56 - 8 * i));
+        }
+    }
+    
+    private static void ghash(long[] y, long hHi, long hLo, byte[] data, int off, int len)
+    {
+        // y = (y XOR block) * H for every block, the last one padded with zeros
+        for(int i = 0; i < len; i += 16)
+        {
+            long hi = 0, lo = 0;
+            for(int j = 0; j < 16; j++)
+            {
+                long b = i + j < len ? Byte.toUnsignedLong(data[off + i + j]) : 0;
+                if(j < 8)
+                {
+                    hi |= b << (56 - 8 * j);
+                } else
+                {
+                    lo |= b << (56 - 8 * (j - 8));
+                }
+            }
+            y[0] ^= hi;
+            y[1] ^= lo;
+            Poly.gfMult128(y, hHi, hLo);
+        }
+    }
+    
+    private static long toLong(byte[] b, int off)
+    {
+        long x = 0;
+        for(int i = 0; i < 8; i++)
+        {
+            x = (x << 8) | Byte.toUnsignedLong(b[off + i]);
+        }
+        return x;
+    }
 }
@@ -0,0 +1,417 @@
+package aes128;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/* A throughput benchmark in the spirit of "openssl speed". It runs every
+ * combination of engine x mode x payload size x thread count and reports
+ * MB/s, an estimate of CPU cycles per byte, and the p50/p99 time of a single
+ * operation. The results can also be written as JSON to compare hosts.
+ *
+ * Like openssl speed, operations are timed in batches (enough for about 4KB
+ * per batch), since calling System.nanoTime() around every 16 byte operation
+ * would cost as much as the operation itself. So for small sizes p50/p99 are
+ * the average time per operation within a batch. The times go into a fixed
+ * size histogram, so memory use doesn't grow with threads or run time.
+ *
+ * Usage: java aes128.Benchmark [--engines jdk,reference] [--modes cbc-enc,cbc-dec,ctr,gcm,iv,seal]
+ *            [--sizes 16,256,1024,8192] [--threads 1,2,4] [--seconds 2]
+ *            [--ghz 3.0] [--json results.json]
+ *
+ * The "iv" mode isn't run by default; it times CtrDrbg producing the same
+ * number of bytes (with the engine of that row), to compare IV generation
+ * against the cipher itself. "seal" isn't run by default either; it seals one
+ * record of each size with Envelope, i.e. with a new data key every time.
+ * The engines default to every one that passed BlockEngines' self-test, and the
+ * known-answer tests are run again for each of them before anything is measured.
+ * Cycles per byte needs the clock speed; it's read from /proc/cpuinfo when
+ * --ghz isn't given, and left out if neither is available. */
+public class Benchmark
+{
+    private static final String[] MODES = {"cbc-enc", "cbc-dec", "ctr", "gcm", "iv", "seal"};
+    private static final int BATCH_BYTES = 4096;
+
+    public static void main(String[] args) throws Exception
+    {
+        String[] engines = new String[BlockEngines.available().size()];
+        for(int i = 0; i < engines.length; i++)
+        {
+            engines[i] = BlockEngines.available().get(i).name();
+        }
+        String[] modes = {"cbc-enc", "cbc-dec", "ctr", "gcm"};
+        int[] sizes = {16, 256, 1024, 8192};
+        int[] threads = {1, Runtime.getRuntime().availableProcessors()};
+        double seconds = 2;
+        double ghz = cpuGhz();
+        String jsonFile = null;
+
+        for(int i = 0; i < args.length; i += 2)
+        {
+            if(i + 1 == args.length)
+            {
+                usage("Missing value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch(args[i])
+            {
+                case "--engines": engines = value.split(","); break;
+                case "--modes": modes = value.split(","); break;
+                case "--sizes": sizes = parseInts(args[i], value); break;
+                case "--threads": threads = parseInts(args[i], value); break;
+                case "--seconds": seconds = parsePositive(args[i], value); break;
+                case "--ghz": ghz = parsePositive(args[i], value); break;
+                case "--json": jsonFile = value; break;
+                default:
+                    usage("Unknown option: " + args[i]);
+            }
+        }
+        for(String mode : modes)
+        {
+            if(!Arrays.asList(MODES).contains(mode))
+            {
+                usage("Unknown mode: " + mode);
+            }
+        }
+
+        for(String name : engines)
+        {
+            BlockEngine engine = BlockEngines.byName(name);
+            if(engine == null)
+            {
+                System.out.println("Unknown or disabled engine: " + name);
+                System.exit(1);
+            }
+            List<String> failed = KnownAnswer.failures(engine);
+            if(!failed.isEmpty())
+            {
+                for(String f : failed)
+                {
+                    System.out.println("KAT FAILED (" + name + "): " + f);
+                }
+                System.exit(1);
+            }
+        }
+        System.out.println("Known-answer tests passed.");
+
+        System.out.printf("%-10s %-8s %8s %7s %10s %8s %10s %10s%n",
+            "engine", "mode", "bytes", "threads", "MB/s", "cyc/B", "p50 us", "p99 us");
+        List<Result> results = new ArrayList<Result>();
+        for(String engine : engines)
+        {
+            for(String mode : modes)
+            {
+                for(int size : sizes)
+                {
+                    for(int t : threads)
+                    {
+                        Result r = measure(engine, mode, size, t, seconds, ghz);
+                        results.add(r);
+                        System.out.printf("%-10s %-8s %8d %7d %10.2f %8s %10.2f %10.2f%n",
+                            engine, mode, size, t, r.mbPerSec,
+                            r.cyclesPerByte > 0 ? String.format("%.1f", r.cyclesPerByte) : "-",
+                            r.p50Nanos / 1000.0, r.p99Nanos / 1000.0);
+                    }
+                }
+            }
+        }
+
+        if(jsonFile != null)
+        {
+            Files.write(Paths.get(jsonFile), toJson(results, ghz).getBytes(StandardCharsets.UTF_8));
+            System.out.println("Results written to " + jsonFile);
+        }
+    }
+
+    private static Result measure(String engine, String mode, int size, int threads, double seconds, double ghz)
+        throws InterruptedException
+    {
+        // short warm-up so the JIT has compiled everything before we time it
+        BlockEngine blockEngine = BlockEngines.byName(engine);
+        runThreads(blockEngine, mode, size, threads, Math.min(0.5, seconds / 4));
+        Worker[] workers = runThreads(blockEngine, mode, size, threads, seconds);
+
+        long ops = 0;
+        long elapsed = 0;
+        long[] histogram = new long[BUCKETS];
+        long samples = 0;
+        for(Worker w : workers)
+        {
+            ops += w.count;
+            elapsed = Math.max(elapsed, w.elapsedNanos);
+            for(int b = 0; b < BUCKETS; b++)
+            {
+                histogram[b] += w.histogram[b];
+                samples += w.histogram[b];
+            }
+        }
+
+        Result r = new Result();
+        r.engine = engine;
+        r.mode = mode;
+        r.size = size;
+        r.threads = threads;
+        r.ops = ops;
+        double bytesPerSec = (double)ops * size / (elapsed / 1e9);
+        r.mbPerSec = bytesPerSec / 1e6;
+        // each thread is assumed to have a core to itself
+        int cores = Math.min(threads, Runtime.getRuntime().availableProcessors());
+        r.cyclesPerByte = ghz > 0 ? ghz * 1e9 * cores / bytesPerSec : -1;
+        r.p50Nanos = percentile(histogram, samples, 0.50);
+        r.p99Nanos = percentile(histogram, samples, 0.99);
+        return r;
+    }
+
+    /* Latency histogram: exact below 64ns, then 32 buckets for every power of
+     * two, so a bucket is never more than about 3% wide. */
+    private static final int BUCKETS = 64 + 58 * 32;
+
+    private static int bucket(long nanos)
+    {
+        if(nanos < 64)
+        {
+            return (int)Math.max(0, nanos);
+        }
+        int e = 63 - Long.numberOfLeadingZeros(nanos);
+        return 64 + (e - 6) * 32 + (int)((nanos >>> (e - 5)) & 31);
+    }
+
+    private static long bucketNanos(int bucket)
+    {
+        // the smallest value that lands in this bucket
+        if(bucket < 64)
+        {
+            return bucket;
+        }
+        int e = (bucket - 64) / 32 + 6;
+        return (32L + (bucket - 64) % 32) << (e - 5);
+    }
+
+    private static long percentile(long[] histogram, long samples, double p)
+    {
+        long rank = (long)(samples * p);
+        long seen = 0;
+        for(int b = 0; b < BUCKETS; b++)
+        {
+            seen += histogram[b];
+            if(seen > rank)
+            {
+                return bucketNanos(b);
+            }
+        }
+        return 0;
+    }
+
+    private static Worker[] runThreads(BlockEngine engine, String mode, int size, int threads, double seconds)
+        throws InterruptedException
+    {
+        Key key = new Key(new byte[16]); // one shared key, like a real server would have
+        CountDownLatch start = new CountDownLatch(1);
+        Worker[] workers = new Worker[threads];
+        Thread[] running = new Thread[threads];
+        for(int i = 0; i < threads; i++)
+        {
+            workers[i] = new Worker(engine, mode, size, key, (long)(seconds * 1e9), start);
+            running[i] = new Thread(workers[i]);
+            running[i].start();
+        }
+        start.countDown();
+        for(Thread t : running)
+        {
+            t.join();
+        }
+        return workers;
+    }
+
+    private static class Worker implements Runnable
+    {
+        private final BlockEngine engine;
+        private final String mode;
+        private final Key key;
+        private final long durationNanos;
+        private final CountDownLatch start;
+        private final byte[] buf;
+        private final byte[] chain = new byte[16];
+        private final byte[] iv = new byte[12];
+        private final CtrDrbg drbg;
+        private final byte[][] records;
+        private final int batch;
+        private final long[] histogram = new long[BUCKETS];
+        private long count;
+        private long elapsedNanos;
+
+        Worker(BlockEngine engine, String mode, int size, Key key, long durationNanos, CountDownLatch start)
+        {
+            this.engine = engine;
+            this.drbg = new CtrDrbg(engine);
+            this.mode = mode;
+            this.key = key;
+            this.durationNanos = durationNanos;
+            this.start = start;
+            // CBC only works on whole blocks
+            this.buf = new byte[mode.startsWith("cbc") ? (size + 15) / 16 * 16 : size];
+            this.batch = Math.max(1, BATCH_BYTES / Math.max(1, size));
+            this.records = new byte[][] {buf};
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                start.await();
+            } catch(InterruptedException e)
+            {
+                return;
+            }
+            long begin = System.nanoTime();
+            long now = begin;
+            while(now - begin < durationNanos)
+            {
+                long t0 = now;
+                for(int i = 0; i < batch; i++)
+                {
+                    runOnce();
+                }
+                now = System.nanoTime();
+                count += batch;
+                histogram[bucket((now - t0) / batch)]++;
+            }
+            elapsedNanos = now - begin;
+        }
+
+        private void runOnce()
+        {
+            switch(mode)
+            {
+                case "cbc-enc":
+                    AES128.encryptCBCBlocks(engine, key, chain, buf, 0, buf.length);
+                    break;
+                case "cbc-dec":
+                    AES128.decryptCBCBlocks(engine, key, chain, buf, 0, buf.length);
+                    break;
+                case "ctr":
+                    AES128.cryptCTR(engine, key, chain, 0, buf, 0, buf.length);
+                    break;
+                case "gcm":
+                    drbg.nextBuffered(iv, 0, 12); // a real caller needs a fresh IV every time
+                    AES128.gcmEncrypt(engine, key, iv, null, buf);
+                    break;
+                case "iv":
+                    drbg.nextBuffered(buf, 0, buf.length);
+                    break;
+                case "seal":
+                    Envelope.sealAll(engine, key, records); // key is the master key here
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown mode: " + mode);
+            }
+        }
+    }
+
+    private static class Result
+    {
+        String engine, mode;
+        int size, threads;
+        long ops, p50Nanos, p99Nanos;
+        double mbPerSec, cyclesPerByte;
+    }
+
+    private static String toJson(List<Result> results, double ghz)
+    {
+        // Written by hand to keep the project free of dependencies
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"timestamp\": \"").append(Instant.now()).append("\",\n");
+        sb.append("  \"host\": {\"os\": \"").append(System.getProperty("os.name"))
+            .append("\", \"arch\": \"").append(System.getProperty("os.arch"))
+            .append("\", \"java\": \"").append(System.getProperty("java.version"))
+            .append("\", \"cpus\": ").append(Runtime.getRuntime().availableProcessors())
+            .append(", \"ghz\": ").append(ghz > 0 ? String.valueOf(ghz) : "null").append("},\n");
+        sb.append("  \"kat\": \"passed\",\n");
+        sb.append("  \"results\": [\n");
+        for(int i = 0; i < results.size(); i++)
+        {
+            Result r = results.get(i);
+            sb.append(String.format("    {\"engine\": \"%s\", \"mode\": \"%s\", \"bytes\": %d, \"threads\": %d, "
+                + "\"ops\": %d, \"mb_per_s\": %.3f, \"cycles_per_byte\": %s, \"p50_ns\": %d, \"p99_ns\": %d}",
+                r.engine, r.mode, r.size, r.threads, r.ops, r.mbPerSec,
+                r.cyclesPerByte > 0 ? String.format("%.2f", r.cyclesPerByte) : "null",
+                r.p50Nanos, r.p99Nanos));
+            sb.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        sb.append("  ]\n}\n");
+        return sb.toString();
+    }
+
+    private static double cpuGhz()
+    {
+        // Linux only; returns -1 if the clock speed can't be found
+        try
+        {
+            for(String line : Files.readAllLines(Path.of("/proc/cpuinfo")))
+            {
+                if(line.startsWith("cpu MHz"))
+                {
+                    return Double.parseDouble(line.substring(line.indexOf(':') + 1).trim()) / 1000;
+                }
+            }
+        } catch(IOException | NumberFormatException e) {}
+        return -1;
+    }
+
+    private static void usage(String problem)
+    {
+        System.out.println(problem);
+        System.out.println("Usage: java aes128.Benchmark [--engines jdk,reference] [--modes cbc-enc,cbc-dec,ctr,gcm,iv,seal]");
+        System.out.println("           [--sizes 16,256,1024,8192] [--threads 1,2,4] [--seconds 2]");
+        System.out.println("           [--ghz 3.0] [--json results.json]");
+        System.exit(1);
+    }
+
+    private static int[] parseInts(String option, String list)
+    {
+        // Every value must be a whole number above 0, anything else gets the usage
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for(int i = 0; i < parts.length; i++)
+        {
+            try
+            {
+                values[i] = Integer.parseInt(parts[i].trim());
+            } catch(NumberFormatException e)
+            {
+                values[i] = 0;
+            }
+            if(values[i] <= 0)
+            {
+                usage(option + " needs numbers above 0, got: " + parts[i]);
+            }
+        }
+        return values;
+    }
+
+    private static double parsePositive(String option, String value)
+    {
+        double d;
+        try
+        {
+            d = Double.parseDouble(value);
+        } catch(NumberFormatException e)
+        {
+            d = 0;
+        }
+        if(!(d > 0) || Double.isInfinite(d))
+        {
+            usage(option + " needs a number above 0, got: " + value);
+        }
+        return d;
+    }
+}
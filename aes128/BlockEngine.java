@@ -0,0 +1,18 @@
+package aes128;
+
+/* The raw block transform behind every mode in AES128: encrypt or decrypt
+ * numBlocks independent 16 byte blocks (ECB, no chaining). The modes do the
+ * chaining, padding and formats themselves, so swapping the engine changes
+ * how fast blocks are computed but never what the output looks like.
+ *
+ * Implementations must be safe to call from many threads at once with a
+ * shared Key, and in/out may be the same array. See BlockEngines for the
+ * available engines and how one is picked. */
+public interface BlockEngine
+{
+    String name();
+
+    void encryptBlocks(Key key, byte[] in, int inOff, byte[] out, int outOff, int numBlocks);
+
+    void decryptBlocks(Key key, byte[] in, int inOff, byte[] out, int outOff, int numBlocks);
+}
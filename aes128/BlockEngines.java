@@ -0,0 +1,101 @@
+package aes128;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/* Knows which BlockEngines exist and which one the modes in AES128 use.
+ *
+ * When this class loads, every candidate engine is run against the
+ * known-answer vectors (KnownAnswer). An engine that gets a single vector
+ * wrong is dropped and never used. The engine can be chosen with the system
+ * property aes128.engine:
+ *   -Daes128.engine=reference   always use this project's own AES
+ *   -Daes128.engine=jdk         use the JDK's (hardware accelerated) AES
+ *   -Daes128.engine=auto        the fastest engine that passed (default) */
+public final class BlockEngines
+{
+    private static final List<BlockEngine> available = selfTest();
+    private static volatile BlockEngine current = select(System.getProperty("aes128.engine", "auto"));
+
+    private BlockEngines() {}
+
+    public static BlockEngine get()
+    {
+        return current;
+    }
+
+    public static void set(BlockEngine engine)
+    {
+        // Only engines that passed the self-test can be selected
+        if(!available.contains(engine))
+        {
+            throw new IllegalArgumentException("Engine did not pass the self-test: " + engine.name());
+        }
+        current = engine;
+    }
+
+    public static List<BlockEngine> available()
+    {
+        return available;
+    }
+
+    public static BlockEngine byName(String name)
+    {
+        for(BlockEngine engine : available)
+        {
+            if(engine.name().equals(name))
+            {
+                return engine;
+            }
+        }
+        return null;
+    }
+
+    private static List<BlockEngine> selfTest()
+    {
+        // fastest first, so "auto" can just take the first one
+        List<BlockEngine> candidates = new ArrayList<BlockEngine>();
+        if(JdkEngine.isAvailable())
+        {
+            candidates.add(new JdkEngine());
+        }
+        candidates.add(new ReferenceEngine());
+
+        List<BlockEngine> passed = new ArrayList<BlockEngine>();
+        for(BlockEngine engine : candidates)
+        {
+            List<String> failed = KnownAnswer.failures(engine);
+            if(failed.isEmpty())
+            {
+                passed.add(engine);
+            } else
+            {
+                System.out.println("WARNING: engine " + engine.name() + " failed its self-test and is disabled:");
+                for(String f : failed)
+                {
+                    System.out.println("  " + f);
+                }
+            }
+        }
+        if(passed.isEmpty())
+        {
+            throw new IllegalStateException("No AES engine passed the known-answer tests");
+        }
+        return Collections.unmodifiableList(passed);
+    }
+
+    private static BlockEngine select(String name)
+    {
+        if(!name.equals("auto"))
+        {
+            BlockEngine engine = byName(name);
+            if(engine != null)
+            {
+                return engine;
+            }
+            System.out.println("WARNING: engine " + name + " is not available, using " + available.get(0).name());
+        }
+        return available.get(0);
+    }
+}
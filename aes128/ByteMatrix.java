@@ -33,11 +33,30 @@ public abstract class ByteMatrix
     
     public ByteMatrix(byte[] bytes)
     {
+        load(bytes, 0);
+    }
+    
+    public void load(byte[] bytes, int off)
+    {
+        // Reads 16 bytes starting at off, column-major like the constructors.
+        // Lets one matrix be reused for every block of a long message.
+        for(int i = 0; i < 4; i++)
+        {
+            for(int j = 0; j < 4; j++)
+            {
+                arr[j][i] = Byte.toUnsignedInt(bytes[off + i * 4 + j]);
+            }
+        }
+    }
+    
+    public void store(byte[] dest, int off)
+    {
+        // The opposite of load(): writes the 16 bytes back out in the same order
         for(int i = 0; i < 4; i++)
         {
             for(int j = 0; j < 4; j++)
             {
-                arr[j][i] = Byte.toUnsignedInt(bytes[i * 4 + j]);
+                dest[off + i * 4 + j] = (byte)arr[j][i];
             }
         }
     }
@@ -0,0 +1,38 @@
+package aes128;
+
+/* A CipherContext is the mutable half of the cipher: the state array a block
+ * is transformed in, plus a few 16 byte scratch buffers for the modes in AES128.
+ * It is NOT thread-safe, which is why every thread gets its own through get().
+ * The Key is passed in on each call, so many threads can share one Key while
+ * each works in its own context - no locks and no copies of the key schedule. */
+public final class CipherContext
+{
+    private static final ThreadLocal<CipherContext> current = ThreadLocal.withInitial(CipherContext::new);
+
+    private final StateArray state = new StateArray(new byte[16]);
+
+    // scratch space for the modes, see AES128.decryptCBCBlocks() and cryptCTR().
+    // Big enough for a batch of blocks, so a BlockEngine gets more than one at a time.
+    final byte[] saved = new byte[256];
+    final byte[] stream = new byte[256];
+
+    public static CipherContext get()
+    {
+        return current.get();
+    }
+
+    public void encryptBlock(Key key, byte[] in, int inOff, byte[] out, int outOff)
+    {
+        // in and out may be the same array, e.g. to encrypt in place
+        state.load(in, inOff);
+        state.encrypt(key);
+        state.store(out, outOff);
+    }
+
+    public void decryptBlock(Key key, byte[] in, int inOff, byte[] out, int outOff)
+    {
+        state.load(in, inOff);
+        state.decrypt(key);
+        state.store(out, outOff);
+    }
+}
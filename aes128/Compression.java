@@ -0,0 +1,105 @@
+package aes128;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Settings for the optional compress-then-encrypt step, used by
+ * AES128.encrypt(..., Compression) and FilePipeline. Compression has to
+ * happen BEFORE encryption: good ciphertext looks random and doesn't compress.
+ *
+ * Small inputs (under minBytes) are never compressed since the deflate
+ * overhead would eat the savings, and if the compressed size is more than
+ * maxRatio of the original, the data is stored uncompressed instead. Either
+ * way the header flag records what actually happened. */
+public final class Compression
+{
+    // bit in the header byte that marks a compressed payload
+    public static final int FLAG_COMPRESSED = 1;
+
+    public static final Compression DEFAULT = new Compression(Deflater.DEFAULT_COMPRESSION, 256, 0.9);
+
+    private final int level;
+    private final long minBytes;
+    private final double maxRatio;
+
+    public Compression(int level, long minBytes, double maxRatio)
+    {
+        this.level = level;
+        this.minBytes = Math.max(1, minBytes);
+        this.maxRatio = maxRatio;
+    }
+
+    public boolean worthTrying(long size)
+    {
+        return size >= minBytes;
+    }
+
+    public boolean worthKeeping(long size, long compressedSize)
+    {
+        return compressedSize <= size * maxRatio;
+    }
+
+    public Deflater newDeflater()
+    {
+        // the zlib format, not raw deflate: CBC has no integrity check of its own,
+        // so the Adler-32 at the end is what catches damaged or tampered data
+        return new Deflater(level);
+    }
+
+    public static Inflater newInflater()
+    {
+        return new Inflater();
+    }
+
+    public byte[] deflate(byte[] data)
+    {
+        Deflater deflater = newDeflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+        byte[] buf = new byte[4096];
+        try
+        {
+            while(!deflater.finished())
+            {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+        } finally
+        {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] inflate(byte[] data) throws DataFormatException
+    {
+        Inflater inflater = newInflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4 + 16);
+        byte[] buf = new byte[4096];
+        try
+        {
+            while(!inflater.finished())
+            {
+                int n = inflater.inflate(buf);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    // ran out of input before the end of the deflate stream
+                    throw new DataFormatException("Truncated compressed data");
+                }
+                out.write(buf, 0, n);
+            }
+            if(inflater.getRemaining() > 0)
+            {
+                throw new DataFormatException("Data after the end of the compressed stream");
+            }
+        } finally
+        {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,177 @@
+package aes128;
+
+import java.security.SecureRandom;
+
+/* A random number generator for IVs and nonces, built from our own block cipher:
+ * CTR_DRBG from NIST SP 800-90A, with AES-128 and no derivation function.
+ *
+ * The idea is simple: keep a secret Key and counter V, and the random output is
+ * just E(Key, V+1), E(Key, V+2), ... - counter mode without any data. After every
+ * request Key and V are replaced by more of that output (update()), so someone who
+ * later learns the state still can't work out what was generated before.
+ *
+ * Creating a new SecureRandom for every message is slow and its seeding contends
+ * under load. Instead, each thread gets its own CtrDrbg, seeded once from
+ * SecureRandom and reseeded every RESEED_INTERVAL requests. IVs are handed out
+ * from a buffer that is refilled BUFFER_SIZE bytes at a time, so most calls to
+ * nextIv() are just a 16 byte copy.
+ *
+ * The shared generators use whatever engine BlockEngines currently selects;
+ * new CtrDrbg(engine) makes a private one tied to a specific engine instead. */
+public final class CtrDrbg
+{
+    // SP 800-90A allows up to 2^48 requests between reseeds and 2^19 bits per request;
+    // we stay far below both
+    public static final int RESEED_INTERVAL = 1 << 12;
+    public static final int MAX_REQUEST = 1 << 16;
+    public static final int BUFFER_SIZE = 4096;
+
+    // only used for seeding, so it's touched once per RESEED_INTERVAL requests
+    private static final SecureRandom entropy = new SecureRandom();
+    private static final ThreadLocal<CtrDrbg> perThread = ThreadLocal.withInitial(CtrDrbg::new);
+
+    private final BlockEngine engine; // null means BlockEngines.get()
+    private Key key;
+    private final byte[] v = new byte[16];
+    private final byte[] temp = new byte[32];
+    private long reseedCounter;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPos = BUFFER_SIZE; // empty until first use
+
+    public CtrDrbg()
+    {
+        this(null);
+    }
+
+    public CtrDrbg(BlockEngine engine)
+    {
+        this.engine = engine;
+        // Instantiate: Key = 0, V = 0, then mix in the seed.
+        // The personalization string keeps two instances apart even if the
+        // entropy source somehow returned the same bytes twice.
+        key = new Key(new byte[16]);
+        byte[] seed = new byte[32];
+        entropy.nextBytes(seed);
+        long id = Thread.currentThread().getId();
+        long time = System.nanoTime();
+        for(int i = 0; i < 8; i++)
+        {
+            seed[i] ^= (byte)(id >>> (8 * i));
+            seed[8 + i] ^= (byte)(time >>> (8 * i));
+        }
+        update(seed);
+        reseedCounter = 1;
+    }
+
+    public static byte[] nextIv()
+    {
+        byte[] iv = new byte[16];
+        nextBytes(iv, 0, 16);
+        return iv;
+    }
+
+    public static void nextBytes(byte[] dest, int off, int len)
+    {
+        // Uses the calling thread's generator, so no locking is needed
+        perThread.get().nextBuffered(dest, off, len);
+    }
+
+    public void nextBuffered(byte[] dest, int off, int len)
+    {
+        while(len > 0)
+        {
+            if(bufferPos == BUFFER_SIZE)
+            {
+                generate(buffer, 0, BUFFER_SIZE);
+                bufferPos = 0;
+            }
+            int n = Math.min(len, BUFFER_SIZE - bufferPos);
+            System.arraycopy(buffer, bufferPos, dest, off, n);
+            // wipe what we handed out so it can't be read from this buffer later
+            for(int i = bufferPos; i < bufferPos + n; i++)
+            {
+                buffer[i] = 0;
+            }
+            bufferPos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public void generate(byte[] out, int off, int len)
+    {
+        if(len > MAX_REQUEST)
+        {
+            throw new IllegalArgumentException("At most " + MAX_REQUEST + " bytes per request");
+        }
+        if(reseedCounter > RESEED_INTERVAL)
+        {
+            reseed();
+        }
+        // write all the counter values out first, so the engine gets them in one call
+        BlockEngine engine = engine();
+        int blocks = len / 16;
+        for(int i = 0; i < blocks; i++)
+        {
+            increment(v);
+            System.arraycopy(v, 0, out, off + i * 16, 16);
+        }
+        engine.encryptBlocks(key, out, off, out, off, blocks);
+        if(len % 16 != 0)
+        {
+            increment(v);
+            engine.encryptBlocks(key, v, 0, temp, 0, 1);
+            System.arraycopy(temp, 0, out, off + blocks * 16, len % 16);
+        }
+        update(null);
+        reseedCounter++;
+    }
+
+    public void reseed()
+    {
+        byte[] seed = new byte[32];
+        entropy.nextBytes(seed);
+        update(seed);
+        reseedCounter = 1;
+    }
+
+    private void update(byte[] provided)
+    {
+        // The CTR_DRBG_Update function: generate 32 more bytes, XOR in the
+        // provided data (if any), and use them as the new Key and V.
+        BlockEngine engine = engine();
+        increment(v);
+        engine.encryptBlocks(key, v, 0, temp, 0, 1);
+        increment(v);
+        engine.encryptBlocks(key, v, 0, temp, 16, 1);
+        if(provided != null)
+        {
+            for(int i = 0; i < 32; i++)
+            {
+                temp[i] ^= provided[i];
+            }
+        }
+        byte[] newKey = new byte[16];
+        System.arraycopy(temp, 0, newKey, 0, 16);
+        key = new Key(newKey);
+        System.arraycopy(temp, 16, v, 0, 16);
+    }
+
+    private BlockEngine engine()
+    {
+        return engine != null ? engine : BlockEngines.get();
+    }
+
+    private static void increment(byte[] counter)
+    {
+        // V = (V + 1) mod 2^128, big-endian
+        for(int i = 15; i >= 0; i--)
+        {
+            if(++counter[i] != 0)
+            {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package aes128;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/* A minimal blocking client for EncryptionService, one request at a time.
+ * Use one client per thread to get requests batched together on the server. */
+public class EncryptionClient implements AutoCloseable
+{
+    private final SocketChannel ch;
+    private int nextId;
+
+    public EncryptionClient(SocketAddress address) throws IOException
+    {
+        this.ch = SocketChannel.open(address);
+    }
+
+    public byte[] encrypt(byte[] key, byte[] plaintext) throws IOException
+    {
+        return call(EncryptionService.OP_ENCRYPT, key, plaintext);
+    }
+
+    public byte[] decrypt(byte[] key, byte[] ciphertext) throws IOException
+    {
+        return call(EncryptionService.OP_DECRYPT, key, ciphertext);
+    }
+
+    public String stats() throws IOException
+    {
+        return new String(call(EncryptionService.OP_STATS, new byte[16], new byte[0]), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        ch.close();
+    }
+
+    private synchronized byte[] call(int op, byte[] key, byte[] payload) throws IOException
+    {
+        int id = nextId++;
+        ByteBuffer request = ByteBuffer.allocate(EncryptionService.REQUEST_HEADER + payload.length);
+        request.put((byte)op).putInt(id).put(key, 0, 16).putInt(payload.length).put(payload).flip();
+        while(request.hasRemaining())
+        {
+            ch.write(request);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(EncryptionService.RESPONSE_HEADER);
+        EncryptionService.readFully(ch, header, false);
+        header.flip();
+        int responseId = header.getInt();
+        int status = header.get();
+        ByteBuffer result = ByteBuffer.allocate(header.getInt());
+        EncryptionService.readFully(ch, result, false);
+        if(responseId != id)
+        {
+            throw new IOException("Response for request " + responseId + ", expected " + id);
+        }
+        if(status != EncryptionService.STATUS_OK)
+        {
+            throw new IOException(new String(result.array(), StandardCharsets.UTF_8));
+        }
+        return result.array();
+    }
+}
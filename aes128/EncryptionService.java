@@ -0,0 +1,696 @@
+package aes128;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Runs the cipher as a small local server, so other processes (in any language)
+ * can share one warmed-up JIT and one cache of expanded keys.
+ *
+ * Every connection gets its own thread - a virtual thread when the JVM has them
+ * (Java 21+), a normal pooled thread otherwise. Connection threads only parse
+ * requests and put them on a queue. Batcher threads take everything that's
+ * queued (waiting up to maxWaitNanos for more), group the requests by key, and
+ * push each group through the multi-block calls in AES128: CBC encryption of
+ * several messages runs in lockstep, one block of each message per call, and
+ * CBC decryption of the whole group is one single call.
+ *
+ * Wire format (all integers big-endian):
+ *   request:  op (1 byte) | id (4) | key (16) | length (4) | payload
+ *   response: id (4) | status (1) | length (4) | payload
+ * ENCRYPT returns IV + CBC ciphertext (PKCS#7, same as AES128.encrypt), DECRYPT
+ * takes that and returns the plaintext, STATS returns the metrics as text.
+ * On error the payload is a UTF-8 message. A client may send several requests
+ * without waiting; responses can come back in any order and are matched by id. */
+public class EncryptionService implements AutoCloseable
+{
+    public static final int OP_ENCRYPT = 1;
+    public static final int OP_DECRYPT = 2;
+    public static final int OP_STATS = 3;
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+    public static final int MAX_PAYLOAD = 16 << 20;
+
+    static final int REQUEST_HEADER = 25;
+    static final int RESPONSE_HEADER = 9;
+    // responses a connection may have outstanding before we stop reading from it
+    static final int MAX_PENDING = 1024;
+
+    private final SocketAddress address;
+    private final int maxBatch;
+    private final long maxWaitNanos;
+    private final LinkedBlockingQueue<Request> queue;
+    private final Map<ByteBuffer, Key> keyCache;
+    private final ExecutorService connectionThreads = newConnectionExecutor();
+    private final Set<SocketChannel> open = ConcurrentHashMap.newKeySet();
+    private final Thread[] batchers;
+    private ServerSocketChannel server;
+    private volatile boolean running;
+
+    // metrics
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong groups = new AtomicLong();
+    private final AtomicLong groupedRequests = new AtomicLong();
+    private final AtomicLong maxGroup = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong keyHits = new AtomicLong();
+    private final AtomicLong keyMisses = new AtomicLong();
+    // group sizes: 1, 2-3, 4-7, 8-15, 16-31, 32-63, 64-127, 128+
+    private final AtomicLongArray groupSizes = new AtomicLongArray(8);
+
+    public EncryptionService(SocketAddress address, int batchThreads, int maxBatch, long maxWaitNanos,
+        int queueCapacity, int keyCacheSize)
+    {
+        this.address = address;
+        this.maxBatch = maxBatch;
+        this.maxWaitNanos = maxWaitNanos;
+        this.queue = new LinkedBlockingQueue<Request>(queueCapacity); // full queue = readers wait
+        this.keyCache = new LinkedHashMap<ByteBuffer, Key>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Key> eldest)
+            {
+                return size() > keyCacheSize; // least recently used key goes first
+            }
+        };
+        this.batchers = new Thread[batchThreads];
+    }
+
+    public EncryptionService(SocketAddress address)
+    {
+        this(address, Runtime.getRuntime().availableProcessors(), 256, 50_000, 4096, 1024);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        // java aes128.EncryptionService [port | path to a unix domain socket]
+        SocketAddress address;
+        if(args.length > 0 && !args[0].matches("\\d+"))
+        {
+            address = UnixDomainSocketAddress.of(Path.of(args[0]));
+        } else
+        {
+            int port = args.length > 0 ? Integer.parseInt(args[0]) : 7443;
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        }
+        EncryptionService service = new EncryptionService(address);
+        service.start();
+        System.out.println("Listening on " + service.getAddress());
+    }
+
+    public synchronized void start() throws IOException
+    {
+        ServerSocketChannel ch;
+        if(address instanceof UnixDomainSocketAddress)
+        {
+            removeStaleSocket((UnixDomainSocketAddress)address);
+            ch = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else
+        {
+            ch = ServerSocketChannel.open();
+        }
+        try
+        {
+            ch.bind(address);
+        } catch(IOException e)
+        {
+            ch.close();
+            throw e;
+        }
+        // only set once bound, so close() never deletes a socket file that isn't ours
+        server = ch;
+        running = true;
+        for(int i = 0; i < batchers.length; i++)
+        {
+            batchers[i] = new Thread(this::batchLoop, "aes128-batcher-" + i);
+            batchers[i].setDaemon(true);
+            batchers[i].start();
+        }
+        Thread acceptor = new Thread(this::acceptLoop, "aes128-acceptor");
+        acceptor.start();
+    }
+
+    public SocketAddress getAddress() throws IOException
+    {
+        // the real address, e.g. the port picked when binding to port 0
+        return server.getLocalAddress();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        running = false;
+        if(server != null)
+        {
+            server.close();
+            if(address instanceof UnixDomainSocketAddress)
+            {
+                // the socket file outlives the channel, and would block the next bind()
+                Files.deleteIfExists(((UnixDomainSocketAddress)address).getPath());
+            }
+        }
+        for(SocketChannel ch : open)
+        {
+            ch.close();
+        }
+        for(Thread t : batchers)
+        {
+            if(t != null)
+            {
+                t.interrupt();
+            }
+        }
+        connectionThreads.shutdownNow();
+    }
+
+    private static void removeStaleSocket(UnixDomainSocketAddress address) throws IOException
+    {
+        // A socket file left behind by a service that died without close().
+        // If something still answers on it, that service is alive, so leave it alone.
+        Path path = address.getPath();
+        if(!Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+        {
+            return;
+        }
+        if(!isSocket(path))
+        {
+            // never delete something that isn't ours, e.g. a path typed wrong
+            throw new BindException("Not a socket, leaving it alone: " + path);
+        }
+        SocketChannel probe;
+        try
+        {
+            probe = SocketChannel.open(address);
+        } catch(ConnectException e)
+        {
+            Files.deleteIfExists(path);
+            return;
+        }
+        probe.close();
+        throw new BindException("Address already in use: " + path);
+    }
+
+    private static boolean isSocket(Path path) throws IOException
+    {
+        // the file type bits of st_mode; where they can't be read, assume it isn't one
+        try
+        {
+            int mode = (Integer)Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & 0170000) == 0140000; // S_IFMT, S_IFSOCK
+        } catch(UnsupportedOperationException | IllegalArgumentException e)
+        {
+            return false;
+        }
+    }
+
+    public String metrics()
+    {
+        long g = groups.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append("requests=").append(requests.get());
+        sb.append(" queue_depth=").append(queue.size());
+        sb.append(" max_queue_depth=").append(maxQueueDepth.get());
+        sb.append(" batches=").append(g);
+        sb.append(String.format(" avg_batch=%.2f", g == 0 ? 0.0 : (double)groupedRequests.get() / g));
+        sb.append(" max_batch=").append(maxGroup.get());
+        sb.append(" batch_hist=");
+        for(int i = 0; i < groupSizes.length(); i++)
+        {
+            sb.append(i == 0 ? "" : ",").append(groupSizes.get(i));
+        }
+        sb.append(" key_cache_hits=").append(keyHits.get());
+        sb.append(" key_cache_misses=").append(keyMisses.get());
+        return sb.toString();
+    }
+
+    private void acceptLoop()
+    {
+        while(running)
+        {
+            try
+            {
+                SocketChannel ch = server.accept();
+                open.add(ch);
+                try
+                {
+                    connectionThreads.execute(() -> serve(ch));
+                } catch(RejectedExecutionException e)
+                {
+                    // accepted just as close() shut the service down
+                    open.remove(ch);
+                    ch.close();
+                    return;
+                }
+            } catch(IOException e)
+            {
+                // the server socket was closed
+                return;
+            }
+        }
+    }
+
+    private void serve(SocketChannel ch)
+    {
+        Connection conn = new Connection(ch);
+        connectionThreads.execute(conn::writeLoop);
+        ByteBuffer header = ByteBuffer.allocate(REQUEST_HEADER);
+        try
+        {
+            while(true)
+            {
+                header.clear();
+                if(!readFully(ch, header, true))
+                {
+                    break; // client closed the connection
+                }
+                header.flip();
+                int op = header.get();
+                int id = header.getInt();
+                byte[] rawKey = new byte[16];
+                header.get(rawKey);
+                int len = header.getInt();
+                if(len < 0 || len > MAX_PAYLOAD)
+                {
+                    // can't skip a payload we won't read, so the connection is done
+                    conn.begin();
+                    conn.respond(id, STATUS_ERROR, "Payload too large".getBytes(StandardCharsets.UTF_8));
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(len);
+                readFully(ch, payload, false);
+
+                requests.incrementAndGet();
+                conn.begin(); // waits if the client isn't reading its responses
+                if(op == OP_STATS)
+                {
+                    conn.respond(id, STATUS_OK, metrics().getBytes(StandardCharsets.UTF_8));
+                } else if(op == OP_ENCRYPT || op == OP_DECRYPT)
+                {
+                    queue.put(new Request(op, id, cachedKey(rawKey), payload.array(), conn));
+                    maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+                } else
+                {
+                    conn.respond(id, STATUS_ERROR, ("Unknown op " + op).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch(IOException e)
+        {
+            // client went away, nothing left to answer
+        } catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        } finally
+        {
+            conn.finish();
+        }
+    }
+
+    private Key cachedKey(byte[] rawKey)
+    {
+        // Expanding a key costs more than encrypting a small message, so keep them around.
+        // Key is immutable, so one instance can be used by every batcher at once.
+        // Lookup and insert are one critical section: otherwise two connections missing
+        // on the same key at once would each build a Key, and since process() groups by
+        // Key instance their requests would end up in separate micro-batches.
+        ByteBuffer k = ByteBuffer.wrap(rawKey);
+        synchronized(keyCache)
+        {
+            Key key = keyCache.get(k);
+            if(key != null)
+            {
+                keyHits.incrementAndGet();
+                return key;
+            }
+            keyMisses.incrementAndGet();
+            key = new Key(rawKey);
+            keyCache.put(k, key);
+            return key;
+        }
+    }
+
+    private void batchLoop()
+    {
+        List<Request> batch = new ArrayList<Request>();
+        while(running)
+        {
+            try
+            {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null)
+                {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                // give a few more requests the chance to join, but not for long
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while(batch.size() < maxBatch)
+                {
+                    long wait = deadline - System.nanoTime();
+                    Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if(next == null)
+                    {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+                process(batch);
+            } catch(InterruptedException e)
+            {
+                return;
+            } catch(RuntimeException e)
+            {
+                // a bug shouldn't take the batcher down with it, or leave clients waiting forever
+                e.printStackTrace();
+                for(Request r : batch)
+                {
+                    if(!r.done)
+                    {
+                        r.fail("Internal error");
+                    }
+                }
+            } finally
+            {
+                batch.clear();
+            }
+        }
+    }
+
+    private void process(List<Request> batch)
+    {
+        // group by key and operation, keeping arrival order within each group
+        Map<Key, List<Request>> encrypts = new LinkedHashMap<Key, List<Request>>();
+        Map<Key, List<Request>> decrypts = new LinkedHashMap<Key, List<Request>>();
+        for(Request r : batch)
+        {
+            (r.op == OP_ENCRYPT ? encrypts : decrypts).computeIfAbsent(r.key, k -> new ArrayList<Request>()).add(r);
+        }
+        for(Map.Entry<Key, List<Request>> e : encrypts.entrySet())
+        {
+            record(e.getValue().size());
+            encryptGroup(e.getKey(), e.getValue());
+        }
+        for(Map.Entry<Key, List<Request>> e : decrypts.entrySet())
+        {
+            record(e.getValue().size());
+            decryptGroup(e.getKey(), e.getValue());
+        }
+    }
+
+    private void record(int size)
+    {
+        groups.incrementAndGet();
+        groupedRequests.addAndGet(size);
+        maxGroup.accumulateAndGet(size, Math::max);
+        groupSizes.incrementAndGet(Math.min(7, 31 - Integer.numberOfLeadingZeros(size)));
+    }
+
+    private void encryptGroup(Key key, List<Request> group)
+    {
+        /* CBC can't encrypt the blocks of ONE message in parallel, but it can
+         * encrypt block i of MANY messages together. So at every step we gather
+         * the next block of each message that still has blocks left, XOR it with
+         * that message's previous ciphertext block, and encrypt them all at once. */
+        int n = group.size();
+        byte[][] out = new byte[n][];
+        int maxBlocks = 0;
+        for(int i = 0; i < n; i++)
+        {
+            byte[] p = group.get(i).payload;
+            int blocks = p.length / 16 + 1;
+            out[i] = new byte[16 + blocks * 16];
+            CtrDrbg.nextBytes(out[i], 0, 16); // IV
+            System.arraycopy(p, 0, out[i], 16, p.length);
+            for(int j = 16 + p.length; j < out[i].length; j++)
+            {
+                out[i][j] = (byte)(out[i].length - 16 - p.length); // PKCS#7 padding
+            }
+            maxBlocks = Math.max(maxBlocks, blocks);
+        }
+
+        byte[] lanes = new byte[n * 16];
+        int[] owner = new int[n];
+        for(int step = 1; step <= maxBlocks; step++)
+        {
+            int count = 0;
+            for(int i = 0; i < n; i++)
+            {
+                int off = step * 16;
+                if(off < out[i].length)
+                {
+                    for(int j = 0; j < 16; j++)
+                    {
+                        lanes[count * 16 + j] = (byte)(out[i][off + j] ^ out[i][off - 16 + j]);
+                    }
+                    owner[count++] = i;
+                }
+            }
+            AES128.encryptBlocks(key, lanes, 0, count);
+            for(int c = 0; c < count; c++)
+            {
+                System.arraycopy(lanes, c * 16, out[owner[c]], step * 16, 16);
+            }
+        }
+        for(int i = 0; i < n; i++)
+        {
+            group.get(i).complete(STATUS_OK, out[i]);
+        }
+    }
+
+    private void decryptGroup(Key key, List<Request> group)
+    {
+        // CBC decryption has no such problem: every block of every message in the
+        // group is decrypted in one call, and then XORed with the block before it.
+        List<Request> valid = new ArrayList<Request>();
+        int total = 0;
+        for(Request r : group)
+        {
+            if(r.payload.length < 32 || r.payload.length % 16 != 0)
+            {
+                r.fail("Invalid ciphertext length");
+            } else
+            {
+                valid.add(r);
+                total += r.payload.length - 16;
+            }
+        }
+        byte[] all = new byte[total];
+        int pos = 0;
+        for(Request r : valid)
+        {
+            System.arraycopy(r.payload, 16, all, pos, r.payload.length - 16);
+            pos += r.payload.length - 16;
+        }
+        AES128.decryptBlocks(key, all, 0, total / 16);
+
+        pos = 0;
+        for(Request r : valid)
+        {
+            int len = r.payload.length - 16;
+            for(int j = 0; j < len; j++)
+            {
+                all[pos + j] ^= r.payload[j]; // payload[j] is the previous block (or IV)
+            }
+            int padding = Byte.toUnsignedInt(all[pos + len - 1]);
+            if(padding < 1 || padding > 16)
+            {
+                r.fail("Invalid ciphertext");
+            } else
+            {
+                byte[] plain = new byte[len - padding];
+                System.arraycopy(all, pos, plain, 0, plain.length);
+                r.complete(STATUS_OK, plain);
+            }
+            pos += len;
+        }
+    }
+
+    private static class Request
+    {
+        final int op;
+        final int id;
+        final Key key;
+        final byte[] payload;
+        final Connection conn;
+        boolean done; // only touched by the batcher that has this request
+
+        Request(int op, int id, Key key, byte[] payload, Connection conn)
+        {
+            this.op = op;
+            this.id = id;
+            this.key = key;
+            this.payload = payload;
+            this.conn = conn;
+        }
+
+        void complete(int status, byte[] result)
+        {
+            done = true;
+            conn.respond(id, status, result);
+        }
+
+        void fail(String message)
+        {
+            complete(STATUS_ERROR, message.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /* Responses are written by a separate thread per connection, so a slow
+     * client never holds up a batcher. When the client hangs up, the reader
+     * waits for its outstanding requests, then tells the writer to finish.
+     *
+     * pending counts requests from the moment they're read until their response
+     * is written. Once it reaches MAX_PENDING the reader stops reading, so a
+     * client that sends without reading its responses can't fill our memory. */
+    private class Connection
+    {
+        private final SocketChannel ch;
+        private final LinkedBlockingQueue<ByteBuffer> responses = new LinkedBlockingQueue<ByteBuffer>();
+        private int pending;
+        private boolean closed; // the writer has stopped, nothing more will be written
+
+        Connection(SocketChannel ch)
+        {
+            this.ch = ch;
+        }
+
+        synchronized void begin() throws InterruptedException
+        {
+            while(pending >= MAX_PENDING && !closed && running)
+            {
+                wait(100);
+            }
+            pending++;
+        }
+
+        synchronized void end()
+        {
+            pending--;
+            notifyAll();
+        }
+
+        synchronized void writerStopped()
+        {
+            closed = true;
+            notifyAll();
+        }
+
+        void respond(int id, int status, byte[] payload)
+        {
+            ByteBuffer buf = ByteBuffer.allocate(RESPONSE_HEADER + payload.length);
+            buf.putInt(id).put((byte)status).putInt(payload.length).put(payload).flip();
+            responses.add(buf);
+        }
+
+        void finish()
+        {
+            synchronized(this)
+            {
+                while(pending > 0 && !closed && running)
+                {
+                    try
+                    {
+                        wait(100);
+                    } catch(InterruptedException e)
+                    {
+                        break;
+                    }
+                }
+            }
+            responses.add(ByteBuffer.allocate(0)); // empty buffer = no more responses
+        }
+
+        void writeLoop()
+        {
+            try
+            {
+                while(true)
+                {
+                    ByteBuffer buf = responses.take();
+                    if(!buf.hasRemaining())
+                    {
+                        break;
+                    }
+                    while(buf.hasRemaining())
+                    {
+                        ch.write(buf);
+                    }
+                    end();
+                }
+            } catch(IOException | InterruptedException e)
+            {
+                // connection closed
+            } finally
+            {
+                writerStopped();
+                open.remove(ch);
+                try
+                {
+                    ch.close();
+                } catch(IOException e) {}
+            }
+        }
+    }
+
+    static boolean readFully(SocketChannel ch, ByteBuffer buf, boolean eofAllowed) throws IOException
+    {
+        // Returns false if the channel was closed before the first byte (a clean EOF)
+        while(buf.hasRemaining())
+        {
+            if(ch.read(buf) < 0)
+            {
+                if(eofAllowed && buf.position() == 0)
+                {
+                    return false;
+                }
+                throw new EOFException("Connection closed mid-message");
+            }
+        }
+        return true;
+    }
+
+    private static ExecutorService newConnectionExecutor()
+    {
+        // Virtual threads only exist from Java 21, so look them up at runtime
+        // and fall back to ordinary threads on older JVMs.
+        try
+        {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException | RuntimeException e)
+        {
+            return Executors.newCachedThreadPool(r ->
+            {
+                Thread t = new Thread(r, "aes128-connection");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
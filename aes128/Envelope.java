@@ -0,0 +1,114 @@
+package aes128;
+
+/* Envelope encryption: every record is encrypted under its own random data
+ * key (DEK), and the DEK is stored next to it, wrapped under a long-lived
+ * master key with KeyWrap. Rotating or revoking the master key then only
+ * touches the small wrapped keys, never the records themselves.
+ *
+ * Sealed record layout:
+ *     wrapped DEK (24 bytes) | GCM IV (12 bytes) | ciphertext | GCM tag (16 bytes)
+ * The wrapped DEK is also the GCM "additional authenticated data", so a record
+ * can't be paired with another record's key without the tag check failing.
+ *
+ * The master Key should be created once and reused: it is immutable, so every
+ * thread can share it, and the engines keep per-thread state for it. sealAll()
+ * and openAll() wrap/unwrap the DEKs of a whole batch together (see KeyWrap).
+ * A DEK is only used for one record, so its setup is what limits small records:
+ * Key doesn't expand its schedule unless the engine asks for it, JdkEngine keeps
+ * the master key's Cipher while setting up the DEK's, and GHASH runs equally
+ * fast for every H (java aes128.Benchmark --modes seal measures all of it). */
+public final class Envelope
+{
+    public static final int WRAPPED_KEY_LEN = 24;
+    public static final int IV_LEN = 12;
+    public static final int OVERHEAD = WRAPPED_KEY_LEN + IV_LEN + 16;
+
+    private Envelope() {}
+
+    public static byte[] seal(Key master, byte[] record)
+    {
+        return sealAll(BlockEngines.get(), master, new byte[][] {record})[0];
+    }
+
+    public static byte[] open(Key master, byte[] sealed)
+    {
+        // Returns null if the record was damaged or sealed under a different master key
+        return openAll(BlockEngines.get(), master, new byte[][] {sealed})[0];
+    }
+
+    public static byte[][] sealAll(Key master, byte[][] records)
+    {
+        return sealAll(BlockEngines.get(), master, records);
+    }
+
+    public static byte[][] openAll(Key master, byte[][] sealed)
+    {
+        return openAll(BlockEngines.get(), master, sealed);
+    }
+
+    public static byte[][] sealAll(BlockEngine engine, Key master, byte[][] records)
+    {
+        int m = records.length;
+        byte[] dekBytes = new byte[16 * m];
+        CtrDrbg.nextBytes(dekBytes, 0, dekBytes.length);
+        byte[][] deks = new byte[m][];
+        for(int i = 0; i < m; i++)
+        {
+            deks[i] = new byte[16];
+            System.arraycopy(dekBytes, 16 * i, deks[i], 0, 16);
+        }
+        byte[][] wrapped = KeyWrap.wrapAll(engine, master, deks);
+
+        byte[][] sealed = new byte[m][];
+        byte[] iv = new byte[IV_LEN];
+        for(int i = 0; i < m; i++)
+        {
+            Key dek = new Key(dekBytes, 16 * i);
+            CtrDrbg.nextBytes(iv, 0, IV_LEN);
+            byte[] ct = AES128.gcmEncrypt(engine, dek, iv, wrapped[i], records[i]);
+            sealed[i] = new byte[WRAPPED_KEY_LEN + IV_LEN + ct.length];
+            System.arraycopy(wrapped[i], 0, sealed[i], 0, WRAPPED_KEY_LEN);
+            System.arraycopy(iv, 0, sealed[i], WRAPPED_KEY_LEN, IV_LEN);
+            System.arraycopy(ct, 0, sealed[i], WRAPPED_KEY_LEN + IV_LEN, ct.length);
+        }
+        return sealed;
+    }
+
+    public static byte[][] openAll(BlockEngine engine, Key master, byte[][] sealed)
+    {
+        // Entries that fail to open come back as null, the rest are unaffected
+        int m = sealed.length;
+        byte[][] opened = new byte[m][];
+        int[] index = new int[m];
+        int count = 0;
+        for(int i = 0; i < m; i++)
+        {
+            if(sealed[i].length >= OVERHEAD)
+            {
+                index[count++] = i;
+            }
+        }
+        byte[][] wrapped = new byte[count][];
+        for(int c = 0; c < count; c++)
+        {
+            wrapped[c] = new byte[WRAPPED_KEY_LEN];
+            System.arraycopy(sealed[index[c]], 0, wrapped[c], 0, WRAPPED_KEY_LEN);
+        }
+        byte[][] deks = KeyWrap.unwrapAll(engine, master, wrapped);
+
+        byte[] iv = new byte[IV_LEN];
+        for(int c = 0; c < count; c++)
+        {
+            if(deks[c] == null)
+            {
+                continue;
+            }
+            byte[] s = sealed[index[c]];
+            System.arraycopy(s, WRAPPED_KEY_LEN, iv, 0, IV_LEN);
+            byte[] ct = new byte[s.length - WRAPPED_KEY_LEN - IV_LEN];
+            System.arraycopy(s, WRAPPED_KEY_LEN + IV_LEN, ct, 0, ct.length);
+            opened[index[c]] = AES128.gcmDecrypt(engine, new Key(deks[c]), iv, wrapped[c], ct);
+        }
+        return opened;
+    }
+}
@@ -0,0 +1,561 @@
+package aes128;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Encrypts files with three stages running at the same time:
+ * 1. reads from disk into a fixed ring of reusable buffers (AsynchronousFileChannel)
+ * 2. encryption of each filled buffer on a pool of worker threads
+ * 3. writes of the encrypted buffers back to disk, issued in file order
+ *
+ * A buffer only goes back into the ring once its write has finished, so the
+ * ring doubles as the bounded queue between the stages: if the disk or the CPU
+ * falls behind, the reader simply waits for a free buffer (backpressure).
+ *
+ * In CBC mode every block depends on the one before it, so each file is one
+ * serial lane - its buffers are encrypted strictly one after the other - and
+ * the parallelism comes from encrypting many files at once (encryptTree).
+ * In CTR mode the blocks are independent, so buffers of the same file are
+ * encrypted on all workers in parallel.
+ *
+ * Output file format: a header byte of flags, the IV (16 bytes), then the
+ * ciphertext. CBC uses PKCS#7 padding just like AES128.encrypt(); CTR output
+ * is the same length as the input.
+ *
+ * With a Compression set, CBC lanes deflate each buffer before encrypting it
+ * and set Compression.FLAG_COMPRESSED in the header. Compressed sizes aren't
+ * known up front, so this needs the serial lane and isn't available for CTR.
+ * Whether a file is worth compressing is decided from its first buffer. */
+public class FilePipeline implements AutoCloseable
+{
+    public enum Mode { CBC, CTR }
+
+    private final Key key;
+    private final Mode mode;
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> ring;
+    private final ExecutorService workers;
+    private final Compression compression;
+
+    public FilePipeline(Key key, Mode mode, int bufferCount, int bufferSize, int workerThreads)
+    {
+        this(key, mode, bufferCount, bufferSize, workerThreads, null);
+    }
+
+    public FilePipeline(Key key, Mode mode, int bufferCount, int bufferSize, int workerThreads, Compression compression)
+    {
+        if(bufferSize <= 0 || bufferSize % 16 != 0)
+        {
+            throw new IllegalArgumentException("bufferSize must be a positive multiple of 16");
+        }
+        if(bufferCount < 1 || workerThreads < 1)
+        {
+            throw new IllegalArgumentException("bufferCount and workerThreads must be at least 1");
+        }
+        if(compression != null && mode != Mode.CBC)
+        {
+            throw new IllegalArgumentException("Compression is only supported in CBC mode");
+        }
+        this.key = key;
+        this.mode = mode;
+        this.bufferSize = bufferSize;
+        this.ring = new ArrayBlockingQueue<ByteBuffer>(bufferCount);
+        for(int i = 0; i < bufferCount; i++)
+        {
+            // + 16 so the last CBC buffer has room for a full block of padding
+            ring.add(ByteBuffer.allocate(bufferSize + 16));
+        }
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.compression = compression;
+    }
+
+    public FilePipeline(Key key, Mode mode)
+    {
+        this(key, mode, 16, 1 << 20, Runtime.getRuntime().availableProcessors());
+    }
+
+    public void encryptFile(Path in, Path out) throws IOException
+    {
+        run(in, out, true);
+    }
+
+    public void decryptFile(Path in, Path out) throws IOException
+    {
+        run(in, out, false);
+    }
+
+    public void encryptTree(Path srcDir, Path destDir, int parallelFiles) throws IOException
+    {
+        runTree(srcDir, destDir, parallelFiles, true);
+    }
+
+    public void decryptTree(Path srcDir, Path destDir, int parallelFiles) throws IOException
+    {
+        runTree(srcDir, destDir, parallelFiles, false);
+    }
+
+    @Override
+    public void close()
+    {
+        workers.shutdown();
+    }
+
+    private void runTree(Path srcDir, Path destDir, int parallelFiles, boolean encrypting) throws IOException
+    {
+        // Every file is read by its own thread from this pool. The ring is shared,
+        // so the total memory used stays the same no matter how many files run at once.
+        List<Path> files = new ArrayList<Path>();
+        try(Stream<Path> walk = Files.walk(srcDir))
+        {
+            walk.filter(Files::isRegularFile).forEach(files::add);
+        }
+
+        ExecutorService readers = Executors.newFixedThreadPool(parallelFiles);
+        try
+        {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for(Path file : files)
+            {
+                Path target = destDir.resolve(srcDir.relativize(file).toString());
+                results.add(readers.submit(() ->
+                {
+                    Files.createDirectories(target.getParent());
+                    run(file, target, encrypting);
+                    return null;
+                }));
+            }
+            for(Future<Void> result : results)
+            {
+                result.get();
+            }
+        } catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing " + srcDir);
+        } catch(ExecutionException e)
+        {
+            throw asIOException(e.getCause());
+        } finally
+        {
+            readers.shutdownNow();
+        }
+    }
+
+    private void run(Path in, Path out, boolean encrypting) throws IOException
+    {
+        try(AsynchronousFileChannel src = AsynchronousFileChannel.open(in, StandardOpenOption.READ);
+            AsynchronousFileChannel dest = AsynchronousFileChannel.open(out, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long size = src.size();
+            byte[] header = new byte[17]; // flags + IV
+            long start;
+            long outShift; // where a byte at input position p ends up in the output (CTR only)
+            if(encrypting)
+            {
+                CtrDrbg.nextBytes(header, 1, 16);
+                start = 0;
+                outShift = 17;
+            } else
+            {
+                if(size < 17 || (mode == Mode.CBC && (size < 33 || (size - 17) % 16 != 0)))
+                {
+                    throw new IOException("Invalid ciphertext length: " + in);
+                }
+                readFully(src, ByteBuffer.wrap(header), 0).join();
+                if((header[0] & Compression.FLAG_COMPRESSED) != 0 && mode != Mode.CBC)
+                {
+                    throw new IOException("Compressed file needs CBC mode: " + in);
+                }
+                start = 17;
+                outShift = -17;
+            }
+            byte[] iv = new byte[16];
+            System.arraycopy(header, 1, iv, 0, 16);
+
+            Lane lane = new Lane(iv, encrypting, header[0], size);
+            CompletableFuture<Chunk> lastCrypted = CompletableFuture.completedFuture(null);
+            try
+            {
+                CompletableFuture<Void> writeTail = CompletableFuture.completedFuture(null);
+                long pos = start;
+                boolean last = false;
+                while(!last && !writeTail.isCompletedExceptionally())
+                {
+                    int len = (int)Math.min(bufferSize, size - pos);
+                    last = pos + len >= size;
+                    ByteBuffer buf = ring.take(); // blocks while every buffer is in flight
+                    buf.clear();
+                    buf.limit(len);
+
+                    CompletableFuture<ByteBuffer> read = readFully(src, buf, pos);
+                    CompletableFuture<Chunk> crypted;
+                    if(mode == Mode.CBC)
+                    {
+                        // chaining on the previous buffer keeps this file's blocks in order
+                        boolean isLast = last;
+                        crypted = read.thenCombineAsync(lastCrypted, (b, prev) ->
+                            encrypting ? lane.encrypt(b, isLast) : lane.decrypt(dest, b, isLast), workers);
+                    } else
+                    {
+                        long blockIndex = (pos - start) / 16;
+                        long outPos = pos + outShift;
+                        crypted = read.thenApplyAsync(b ->
+                        {
+                            AES128.cryptCTR(key, iv, blockIndex, b.array(), 0, b.limit());
+                            return new Chunk(b, outPos);
+                        }, workers);
+                    }
+                    lastCrypted = crypted;
+
+                    // writes are queued behind each other so they reach the disk in file order
+                    writeTail = writeTail.thenCombine(crypted, (v, c) -> c)
+                        .thenCompose(c -> writeFully(dest, c.buf, c.outPos))
+                        .whenComplete((v, e) -> ring.add(buf));
+                    pos += len;
+                }
+                writeTail.join();
+                if(encrypting)
+                {
+                    // the flags are only known once the first buffer has been seen
+                    header[0] = lane.flags;
+                    writeFully(dest, ByteBuffer.wrap(header), 0).join();
+                }
+            } finally
+            {
+                // Frees the zlib state once no worker can touch this lane any more,
+                // including when the file failed or we were interrupted half way.
+                lastCrypted.whenComplete((c, e) -> lane.end());
+            }
+        } catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing " + in);
+        } catch(CompletionException e)
+        {
+            throw asIOException(e.getCause());
+        }
+    }
+
+    // an encrypted buffer and where it goes in the output file
+    private static class Chunk
+    {
+        final ByteBuffer buf;
+        final long outPos;
+
+        Chunk(ByteBuffer buf, long outPos)
+        {
+            this.buf = buf;
+            this.outPos = outPos;
+        }
+    }
+
+    /* Everything a CBC file needs to carry from one buffer to the next.
+     * Only one worker touches a lane at a time (each buffer waits for the
+     * previous one), so none of this needs locking. */
+    private class Lane
+    {
+        final byte[] chain;  // previous ciphertext block, starts as the IV
+        byte flags;
+        long outPos;         // next write position in the output file
+        Deflater deflater;
+        Inflater inflater;
+        byte[] scratch = new byte[bufferSize + 16];
+        // compressed bytes left over because they didn't fill a whole block
+        final byte[] carry = new byte[16];
+        int carryLen;
+        boolean first = true;
+
+        Lane(byte[] iv, boolean encrypting, byte flags, long size)
+        {
+            this.chain = iv.clone();
+            this.flags = flags;
+            this.outPos = encrypting ? 17 : 0;
+            if(encrypting && compression != null && compression.worthTrying(size))
+            {
+                deflater = compression.newDeflater();
+            } else if(!encrypting && (flags & Compression.FLAG_COMPRESSED) != 0)
+            {
+                inflater = Compression.newInflater();
+            }
+        }
+
+        Chunk encrypt(ByteBuffer buf, boolean last)
+        {
+            byte[] arr = buf.array();
+            int len = buf.limit();
+            if(deflater == null)
+            {
+                if(last)
+                {
+                    len = pad(arr, len);
+                    buf.limit(len);
+                }
+                AES128.encryptCBCBlocks(key, chain, arr, 0, len);
+                return advance(buf);
+            }
+
+            // compress this buffer, after any bytes carried over from the last one
+            System.arraycopy(carry, 0, scratch, 0, carryLen);
+            deflater.setInput(arr, 0, len);
+            int produced = carryLen + deflate(carryLen, first && !last ? Deflater.SYNC_FLUSH : Deflater.NO_FLUSH);
+            if(last)
+            {
+                deflater.finish();
+                produced += deflate(produced, Deflater.NO_FLUSH);
+            }
+            if(first && !compression.worthKeeping(len, produced))
+            {
+                // doesn't compress well (already compressed, random...), so encrypt it as is
+                deflater.end();
+                deflater = null;
+                first = false;
+                return encrypt(buf, last);
+            }
+            if(first)
+            {
+                flags |= Compression.FLAG_COMPRESSED;
+                first = false;
+            }
+
+            int encLen;
+            if(last)
+            {
+                encLen = pad(scratch, produced);
+                carryLen = 0;
+            } else
+            {
+                encLen = produced - produced % 16;
+                carryLen = produced - encLen;
+                System.arraycopy(scratch, encLen, carry, 0, carryLen);
+            }
+            // usually the compressed data fits back into the ring buffer, if not it gets its own
+            byte[] target = encLen <= buf.capacity() ? arr : new byte[encLen];
+            System.arraycopy(scratch, 0, target, 0, encLen);
+            AES128.encryptCBCBlocks(key, chain, target, 0, encLen);
+            if(target == arr)
+            {
+                buf.clear();
+                buf.limit(encLen);
+                return advance(buf);
+            }
+            return advance(ByteBuffer.wrap(target));
+        }
+
+        Chunk decrypt(AsynchronousFileChannel dest, ByteBuffer buf, boolean last)
+        {
+            byte[] arr = buf.array();
+            AES128.decryptCBCBlocks(key, chain, arr, 0, buf.limit());
+            if(last)
+            {
+                int padding = Byte.toUnsignedInt(arr[buf.limit() - 1]);
+                if(padding < 1 || padding > 16 || padding > buf.limit())
+                {
+                    // same check as AES128.decrypt(): something was wrong with the key or ciphertext
+                    throw new IllegalStateException("Invalid ciphertext");
+                }
+                buf.limit(buf.limit() - padding);
+            }
+            if(inflater == null)
+            {
+                return advance(buf);
+            }
+
+            /* Inflated data can be many times bigger than the ring buffer, so
+             * whenever scratch fills up it's written out right here from the lane.
+             * Only the final piece goes back through the normal write stage. */
+            if(inflater.finished() && buf.limit() > 0)
+            {
+                throw new IllegalStateException("Data after the end of the compressed stream");
+            }
+            inflater.setInput(arr, 0, buf.limit());
+            int produced = 0;
+            try
+            {
+                while(!inflater.finished())
+                {
+                    if(produced == scratch.length)
+                    {
+                        writeFully(dest, ByteBuffer.wrap(scratch, 0, produced), outPos).join();
+                        outPos += produced;
+                        produced = 0;
+                    }
+                    int n = inflater.inflate(scratch, produced, scratch.length - produced);
+                    if(n == 0 && inflater.needsDictionary())
+                    {
+                        // we never use a preset dictionary, so the header was tampered with;
+                        // inflate() would just keep returning 0
+                        throw new DataFormatException("Compressed data needs a dictionary");
+                    }
+                    if(n == 0 && inflater.needsInput())
+                    {
+                        break;
+                    }
+                    produced += n;
+                }
+            } catch(DataFormatException e)
+            {
+                // this includes a wrong Adler-32, i.e. the ciphertext was changed
+                throw new IllegalStateException("Invalid compressed data", e);
+            }
+            if(inflater.finished() && inflater.getRemaining() > 0)
+            {
+                throw new IllegalStateException("Data after the end of the compressed stream");
+            }
+            if(last && !inflater.finished())
+            {
+                throw new IllegalStateException("Truncated compressed data");
+            }
+            System.arraycopy(scratch, 0, arr, 0, produced);
+            buf.clear();
+            buf.limit(produced);
+            return advance(buf);
+        }
+
+        private int deflate(int off, int flush)
+        {
+            // Runs the deflater until it wants more input (or is finished),
+            // growing scratch as needed. Returns how many bytes it wrote after off.
+            int produced = off;
+            while(true)
+            {
+                if(produced + 16 >= scratch.length)
+                {
+                    scratch = Arrays.copyOf(scratch, scratch.length * 2); // room for padding too
+                }
+                int space = scratch.length - 16 - produced;
+                int n = deflater.deflate(scratch, produced, space, flush);
+                produced += n;
+                boolean done = deflater.finished() || (n < space && deflater.needsInput());
+                if(done)
+                {
+                    return produced - off;
+                }
+            }
+        }
+
+        void end()
+        {
+            // Frees zlib's native memory; end() may be called more than once
+            if(deflater != null)
+            {
+                deflater.end();
+            }
+            if(inflater != null)
+            {
+                inflater.end();
+            }
+        }
+
+        private Chunk advance(ByteBuffer buf)
+        {
+            Chunk c = new Chunk(buf, outPos);
+            outPos += buf.limit();
+            return c;
+        }
+    }
+
+    private static int pad(byte[] arr, int len)
+    {
+        // PKCS#7 padding, same as AES128.encrypt(): always 1 to 16 bytes
+        int toPad = 16 - len % 16;
+        for(int i = 0; i < toPad; i++)
+        {
+            arr[len + i] = (byte)toPad;
+        }
+        return len + toPad;
+    }
+
+    private static CompletableFuture<ByteBuffer> readFully(AsynchronousFileChannel ch, ByteBuffer buf, long pos)
+    {
+        // A single read may return fewer bytes than asked for, so keep
+        // reading from the completion handler until the buffer is full.
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<ByteBuffer>();
+        ch.read(buf, pos, null, new CompletionHandler<Integer, Void>()
+        {
+            @Override
+            public void completed(Integer n, Void attachment)
+            {
+                if(n < 0)
+                {
+                    result.completeExceptionally(new EOFException("File shrank while reading"));
+                } else if(buf.hasRemaining())
+                {
+                    ch.read(buf, pos + buf.position(), null, this);
+                } else
+                {
+                    buf.flip();
+                    result.complete(buf);
+                }
+            }
+
+            @Override
+            public void failed(Throwable t, Void attachment)
+            {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    private static CompletableFuture<Void> writeFully(AsynchronousFileChannel ch, ByteBuffer buf, long pos)
+    {
+        CompletableFuture<Void> result = new CompletableFuture<Void>();
+        int start = buf.position();
+        ch.write(buf, pos, null, new CompletionHandler<Integer, Void>()
+        {
+            @Override
+            public void completed(Integer n, Void attachment)
+            {
+                if(buf.hasRemaining())
+                {
+                    ch.write(buf, pos + buf.position() - start, null, this);
+                } else
+                {
+                    result.complete(null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable t, Void attachment)
+            {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    private static IOException asIOException(Throwable t)
+    {
+        while(t instanceof CompletionException || t instanceof ExecutionException)
+        {
+            t = t.getCause();
+        }
+        if(t instanceof IOException)
+        {
+            return (IOException)t;
+        }
+        return new IOException(t.getMessage(), t);
+    }
+}
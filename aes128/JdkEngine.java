@@ -0,0 +1,104 @@
+package aes128;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/* Hands the block transform to the JDK's built-in AES ("AES/ECB/NoPadding").
+ * HotSpot replaces its inner loop with the CPU's AES instructions (AES-NI on
+ * x86, the ARMv8 crypto extensions on ARM) when they exist, which is orders of
+ * magnitude faster than computing the rounds in Java. Everything else - modes,
+ * padding, IVs, formats - still comes from this project.
+ *
+ * A Cipher object isn't thread-safe and is expensive to set up (Cipher.init
+ * costs as much as dozens of blocks), so each thread keeps Ciphers for the last
+ * few Keys it used in each direction. Code that alternates between keys, like
+ * Envelope wrapping under the master key and then encrypting under a new data
+ * key, then only sets up a Cipher for the key that is actually new. */
+public class JdkEngine implements BlockEngine
+{
+    private static final String TRANSFORMATION = "AES/ECB/NoPadding";
+    private static final int CACHED_KEYS = 4;
+
+    private final ThreadLocal<CipherCache> encrypting = ThreadLocal.withInitial(() -> new CipherCache(Cipher.ENCRYPT_MODE));
+    private final ThreadLocal<CipherCache> decrypting = ThreadLocal.withInitial(() -> new CipherCache(Cipher.DECRYPT_MODE));
+
+    private static class CipherCache
+    {
+        // most recently used first
+        final int mode;
+        final Key[] keys = new Key[CACHED_KEYS];
+        final Cipher[] ciphers = new Cipher[CACHED_KEYS];
+
+        CipherCache(int mode)
+        {
+            this.mode = mode;
+        }
+
+        Cipher get(Key key) throws GeneralSecurityException
+        {
+            int i = 0;
+            while(i < CACHED_KEYS - 1 && keys[i] != key)
+            {
+                i++;
+            }
+            Cipher cipher = ciphers[i];
+            if(keys[i] != key)
+            {
+                // not cached, so the least recently used Cipher (the last one) gets the new key
+                if(cipher == null)
+                {
+                    cipher = Cipher.getInstance(TRANSFORMATION);
+                }
+                cipher.init(mode, new SecretKeySpec(key.getKeyBytes(), "AES"));
+            }
+            System.arraycopy(keys, 0, keys, 1, i);
+            System.arraycopy(ciphers, 0, ciphers, 1, i);
+            keys[0] = key;
+            ciphers[0] = cipher;
+            return cipher;
+        }
+    }
+
+    public static boolean isAvailable()
+    {
+        try
+        {
+            Cipher.getInstance(TRANSFORMATION);
+            return true;
+        } catch(GeneralSecurityException e)
+        {
+            return false;
+        }
+    }
+
+    @Override
+    public String name()
+    {
+        return "jdk";
+    }
+
+    @Override
+    public void encryptBlocks(Key key, byte[] in, int inOff, byte[] out, int outOff, int numBlocks)
+    {
+        try
+        {
+            encrypting.get().get(key).doFinal(in, inOff, numBlocks * 16, out, outOff);
+        } catch(GeneralSecurityException e)
+        {
+            throw new IllegalStateException("JDK AES failed", e);
+        }
+    }
+
+    @Override
+    public void decryptBlocks(Key key, byte[] in, int inOff, byte[] out, int outOff, int numBlocks)
+    {
+        try
+        {
+            decrypting.get().get(key).doFinal(in, inOff, numBlocks * 16, out, outOff);
+        } catch(GeneralSecurityException e)
+        {
+            throw new IllegalStateException("JDK AES failed", e);
+        }
+    }
+}
@@ -1,72 +1,125 @@
 package aes128;
 
-public class Key extends ByteMatrix
+/* A Key is immutable: nothing can change the key or its schedule once it is
+ * created. That means one Key can be shared by any number of threads without
+ * locks or copies. The mutable, per-block working state lives in StateArray /
+ * CipherContext instead.
+ *
+ * The key schedule is only computed the first time it's asked for. Engines
+ * like JdkEngine only need the 16 key bytes, so with them a Key made for a
+ * single record (see Envelope) never pays for an expansion it doesn't use. */
+public final class Key
 {
-    private int[][] roundKeyWords = new int[44][4];
-    
+    // computed once, instead of on every key expansion
+    private static final int[] roundConstants = genRoundConstants();
+
+    private final byte[] keyBytes = new byte[16];
+
+    // word w, byte i of the key schedule is roundKeyBytes[w * 4 + i].
+    // One flat array instead of 44 small ones; null until first used.
+    private volatile int[] roundKeyBytes;
+
     public Key(byte[] key)
     {
-        // Note that the hash simply gets trimmed when converting to 4x4 byte matrix
-        super(key);
-        expandKey();
+        // Note that the hash simply gets trimmed to the first 16 bytes
+        this(key, 0);
+    }
+
+    public Key(byte[] key, int off)
+    {
+        // Uses the 16 bytes starting at off, e.g. one of many keys stored in one array
+        System.arraycopy(key, off, keyBytes, 0, 16);
     }
-    
+
     public Key(String key) // overloaded constructor for debug purposes
     {
-        super(key);
-        expandKey();
+        this(hexToBytes(key));
     }
-    
-    private void expandKey()
+
+    public static void expandKey(byte[] key, int off, int[] roundKeyBytes)
     {
         /* This is key expansion, where we turn the key into a
          * key schedule composed of round keys. A round key is 4 words.
-         * Words w4 w5 w6 w7 = round key for round 1 for example. */
-        
-        int[] roundConstants = genRoundConstants();
-            
-        int[] temp = new int[4];
-        for(int i = 0; i < 44; i++)
+         * Words w4 w5 w6 w7 = round key for round 1 for example.
+         * This works directly in roundKeyBytes (176 entries) and creates no
+         * arrays along the way, since with one key per record it runs a lot. */
+        for(int i = 0; i < 16; i++)
+        {
+            // word i is column i of the key, e.g. word 0 is byte0, 1, 2, and 3
+            roundKeyBytes[i] = Byte.toUnsignedInt(key[off + i]);
+        }
+        for(int i = 4; i < 44; i++)
         {
-            if(i < 4)
+            int w = i * 4;
+            int prev = w - 4;  // w(i - 1)
+            int back = w - 16; // w(i - 4)
+            if(i % 4 == 0)
             {
-                // initial state array words
-                temp = this.getWord(i);
-                for(int j = 0; j < 4; j++)
-                {
-                    roundKeyWords[i][j] = temp[j];
-                }
+                // w4 = w0 XOR g(w3) (every fourth word is special), where g() is the
+                // NIST function: rotate the word, substitute each byte, XOR the round constant
+                roundKeyBytes[w] = roundKeyBytes[back] ^ Poly.enc_sbox[roundKeyBytes[prev + 1]] ^ roundConstants[i / 4 - 1];
+                roundKeyBytes[w + 1] = roundKeyBytes[back + 1] ^ Poly.enc_sbox[roundKeyBytes[prev + 2]];
+                roundKeyBytes[w + 2] = roundKeyBytes[back + 2] ^ Poly.enc_sbox[roundKeyBytes[prev + 3]];
+                roundKeyBytes[w + 3] = roundKeyBytes[back + 3] ^ Poly.enc_sbox[roundKeyBytes[prev]];
             } else
             {
-                // w4 = w0 XOR g(w3) (every fourth word is special)
-                // w5 = w4 XOR w1, w6 = w5 XOR w2, etc.
-                if(i % 4 == 0)
-                {
-                    temp = xor(getWord(roundKeyWords, i - 4), g(getWord(roundKeyWords, i - 1), roundConstants[i / 4 - 1]));
-                    for(int j = 0; j < 4; j++)
-                    {
-                        roundKeyWords[i][j] = temp[j];   
-                    }
-                } else
+                // w5 = w4 XOR w1, w6 = w5 XOR w2, etc
+                for(int j = 0; j < 4; j++)
                 {
-                    // w5 = w4 XOR w1, w6 = w5 XOR w2, etc
-                    temp = xor(getWord(roundKeyWords, i - 4), getWord(roundKeyWords, i - 1));
-                    for(int j = 0; j < 4; j++)
-                    {
-                        roundKeyWords[i][j] = temp[j];
-                    }
+                    roundKeyBytes[w + j] = roundKeyBytes[back + j] ^ roundKeyBytes[prev + j];
                 }
             }
-        }   
+        }
+    }
+
+    private int[] schedule()
+    {
+        // If two threads get here at the same time both expand the key, which is
+        // harmless: they compute the same schedule and either one can be kept.
+        int[] schedule = roundKeyBytes;
+        if(schedule == null)
+        {
+            schedule = new int[176];
+            expandKey(keyBytes, 0, schedule);
+            roundKeyBytes = schedule;
+        }
+        return schedule;
     }
-    
+
     public int[] getRoundKeyWord (int wordNum)
     {
         // wordNum is a number from 0 to 43
-        int[] word = {roundKeyWords[wordNum][0], roundKeyWords[wordNum][1], roundKeyWords[wordNum][2], roundKeyWords[wordNum][3]};
+        // returns a copy so callers can never modify the schedule
+        int[] schedule = schedule();
+        int w = wordNum * 4;
+        int[] word = {schedule[w], schedule[w + 1], schedule[w + 2], schedule[w + 3]};
         return word;
     }
-    
+
+    public int getRoundKeyByte(int wordNum, int i)
+    {
+        // Same as getRoundKeyWord(wordNum)[i] without creating an array every time
+        return schedule()[wordNum * 4 + i];
+    }
+
+    public byte[] getKeyBytes()
+    {
+        // The original 16 key bytes (words 0 to 3), e.g. for handing the key to another AES implementation
+        return keyBytes.clone();
+    }
+
+    public String toHexString()
+    {
+        // The original key, i.e. words 0 to 3
+        String str = "";
+        for(int i = 0; i < 16; i++)
+        {
+            String temp = Integer.toString(Byte.toUnsignedInt(keyBytes[i]), 16);
+            str += temp.length() == 1 ? "0" + temp : temp;
+        }
+        return str;
+    }
+
     public static int[] genRoundConstants()
     {
         int[] roundConstants = new int[10];
@@ -74,22 +127,20 @@ public class Key extends ByteMatrix
         roundConstants[1] = 2;
         for(int i = 2; i < 10; i++)
         {
-            roundConstants[i] = Poly.polyMult(2, roundConstants[i - 1], 283);   
+            roundConstants[i] = Poly.polyMult(2, roundConstants[i - 1], 283);
         }
-        
+
         return roundConstants;
     }
-    
-    public static int[] g(int[] word, int roundConstant)
-    {
-        // This is the g() function defined in NIST specifications
-        int[] w = {Poly.enc_sbox[word[1]] ^ roundConstant, Poly.enc_sbox[word[2]], Poly.enc_sbox[word[3]], Poly.enc_sbox[word[0]]};
-        return w;
-    }
-    
-    public int[] xor(int[] a, int[] b)
+
+    private static byte[] hexToBytes(String str)
     {
-        int[] x = {a[0] ^ b[0], a[1] ^ b[1], a[2] ^ b[2], a[3] ^ b[3]};
-        return x;
+        // str must be 32 hex characters, 2 hex digits = 1 byte
+        byte[] bytes = new byte[16];
+        for(int i = 0; i < 16; i++)
+        {
+            bytes[i] = (byte)Integer.parseInt(str.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
     }
 }
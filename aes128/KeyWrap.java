@@ -0,0 +1,170 @@
+package aes128;
+
+/* AES Key Wrap (RFC 3394): encrypts a key under another key (the "key
+ * encryption key", KEK) with a built-in integrity check, so unwrapping with
+ * the wrong KEK or a damaged wrapped key is detected instead of silently
+ * producing garbage. A 16 byte key wraps to 24 bytes.
+ *
+ * The key is split into 64 bit halves R[1..n] next to a 64 bit register A,
+ * which starts as the constant A6A6A6A6A6A6A6A6. Then, 6 times over, each
+ * R[i] is encrypted together with A:
+ *     B = AES(KEK, A | R[i]),  A = first half of B XOR step number,  R[i] = second half of B
+ * Unwrapping runs the same steps backwards, and A must come out as A6A6...
+ *
+ * Wrapping ONE key is a chain of 6n dependent block encryptions, but wrapping
+ * MANY keys under the same KEK can do step s of every key at once. wrapAll()
+ * and unwrapAll() do exactly that: one BlockEngine call per step for the whole
+ * batch, all with the same (already expanded) KEK. */
+public final class KeyWrap
+{
+    private static final byte IV = (byte)0xA6;
+
+    private KeyWrap() {}
+
+    public static byte[] wrap(Key kek, byte[] key)
+    {
+        return wrapAll(BlockEngines.get(), kek, new byte[][] {key})[0];
+    }
+
+    public static byte[] unwrap(Key kek, byte[] wrapped)
+    {
+        // Returns null if the integrity check fails
+        return unwrapAll(BlockEngines.get(), kek, new byte[][] {wrapped})[0];
+    }
+
+    public static byte[][] wrapAll(Key kek, byte[][] keys)
+    {
+        return wrapAll(BlockEngines.get(), kek, keys);
+    }
+
+    public static byte[][] unwrapAll(Key kek, byte[][] wrapped)
+    {
+        return unwrapAll(BlockEngines.get(), kek, wrapped);
+    }
+
+    public static byte[][] wrapAll(BlockEngine engine, Key kek, byte[][] keys)
+    {
+        // All keys must be the same length, a multiple of 8 bytes and at least 16
+        int m = keys.length;
+        if(m == 0)
+        {
+            return new byte[0][];
+        }
+        int n = checkLength(keys, 0) / 8;
+
+        // out[k] = A | R[1] | ... | R[n] for key k, which is also the final layout
+        byte[][] out = new byte[m][];
+        for(int k = 0; k < m; k++)
+        {
+            out[k] = new byte[8 + 8 * n];
+            for(int b = 0; b < 8; b++)
+            {
+                out[k][b] = IV;
+            }
+            System.arraycopy(keys[k], 0, out[k], 8, 8 * n);
+        }
+
+        byte[] blocks = new byte[16 * m];
+        for(int j = 0; j < 6; j++)
+        {
+            for(int i = 1; i <= n; i++)
+            {
+                // gather A | R[i] of every key, encrypt them all in one go, scatter back
+                for(int k = 0; k < m; k++)
+                {
+                    System.arraycopy(out[k], 0, blocks, 16 * k, 8);
+                    System.arraycopy(out[k], 8 * i, blocks, 16 * k + 8, 8);
+                }
+                engine.encryptBlocks(kek, blocks, 0, blocks, 0, m);
+                long t = (long)n * j + i;
+                for(int k = 0; k < m; k++)
+                {
+                    System.arraycopy(blocks, 16 * k, out[k], 0, 8);
+                    xorStep(out[k], t);
+                    System.arraycopy(blocks, 16 * k + 8, out[k], 8 * i, 8);
+                }
+            }
+        }
+        return out;
+    }
+
+    public static byte[][] unwrapAll(BlockEngine engine, Key kek, byte[][] wrapped)
+    {
+        // Entries that fail the integrity check come back as null
+        int m = wrapped.length;
+        if(m == 0)
+        {
+            return new byte[0][];
+        }
+        int n = checkLength(wrapped, 8) / 8 - 1;
+
+        byte[][] state = new byte[m][];
+        for(int k = 0; k < m; k++)
+        {
+            state[k] = wrapped[k].clone();
+        }
+
+        byte[] blocks = new byte[16 * m];
+        for(int j = 5; j >= 0; j--)
+        {
+            for(int i = n; i >= 1; i--)
+            {
+                long t = (long)n * j + i;
+                for(int k = 0; k < m; k++)
+                {
+                    xorStep(state[k], t);
+                    System.arraycopy(state[k], 0, blocks, 16 * k, 8);
+                    System.arraycopy(state[k], 8 * i, blocks, 16 * k + 8, 8);
+                }
+                engine.decryptBlocks(kek, blocks, 0, blocks, 0, m);
+                for(int k = 0; k < m; k++)
+                {
+                    System.arraycopy(blocks, 16 * k, state[k], 0, 8);
+                    System.arraycopy(blocks, 16 * k + 8, state[k], 8 * i, 8);
+                }
+            }
+        }
+
+        byte[][] keys = new byte[m][];
+        for(int k = 0; k < m; k++)
+        {
+            int diff = 0;
+            for(int b = 0; b < 8; b++)
+            {
+                diff |= state[k][b] ^ IV;
+            }
+            if(diff == 0)
+            {
+                keys[k] = new byte[8 * n];
+                System.arraycopy(state[k], 8, keys[k], 0, 8 * n);
+            }
+        }
+        return keys;
+    }
+
+    private static int checkLength(byte[][] all, int extra)
+    {
+        int len = all[0].length;
+        if(len % 8 != 0 || len < 16 + extra)
+        {
+            throw new IllegalArgumentException("Length must be a multiple of 8 and at least " + (16 + extra));
+        }
+        for(byte[] b : all)
+        {
+            if(b.length != len)
+            {
+                throw new IllegalArgumentException("All keys in a batch must be the same length");
+            }
+        }
+        return len;
+    }
+
+    private static void xorStep(byte[] a, long t)
+    {
+        // A = A XOR t, with t as a big-endian 64 bit number
+        for(int b = 0; b < 8; b++)
+        {
+            a[b] ^= (byte)(t >>> (56 - 8 * b));
+        }
+    }
+}
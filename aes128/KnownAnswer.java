@@ -0,0 +1,119 @@
+package aes128;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+/* Known-answer tests: published inputs and outputs that any correct AES-128
+ * must reproduce exactly. Run these before trusting (or timing) anything.
+ *
+ * Block vectors are FIPS-197 Appendix B and Appendix C.1 (the same ones the
+ * -1 option in AES128.main prints). The mode vectors are from NIST SP 800-38A
+ * (CTR, F.5.1), the original GCM specification (test cases 2, 3 and 4) and
+ * RFC 3394 (key wrap, section 4.1). */
+public final class KnownAnswer
+{
+    private static final HexFormat hex = HexFormat.of();
+
+    // {key, plaintext, ciphertext}
+    private static final String[][] BLOCK = {
+        {"2b7e151628aed2a6abf7158809cf4f3c", "3243f6a8885a308d313198a2e0370734", "3925841d02dc09fbdc118597196a0b32"},
+        {"000102030405060708090a0b0c0d0e0f", "00112233445566778899aabbccddeeff", "69c4e0d86a7b0430d8cdb78070b4c55a"}
+    };
+
+    // {key, counter, plaintext, ciphertext}
+    private static final String[][] CTR = {
+        {"2b7e151628aed2a6abf7158809cf4f3c", "f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff",
+         "6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e51"
+            + "30c81c46a35ce411e5fbc1191a0a52eff69f2445df4f9b17ad2b417be66c3710",
+         "874d6191b620e3261bef6864990db6ce9806f66b7970fdff8617187bb9fffdff"
+            + "5ae4df3edbd5d35e5b4f09020db03eab1e031dda2fbe03d1792170a0f3009cee"}
+    };
+
+    // {key, iv, aad, plaintext, ciphertext + tag}
+    private static final String[][] GCM = {
+        {"00000000000000000000000000000000", "000000000000000000000000", "",
+         "00000000000000000000000000000000",
+         "0388dace60b6a392f328c2b971b2fe78" + "ab6e47d42cec13bdf53a67b21257bddf"},
+        {"feffe9928665731c6d6a8f9467308308", "cafebabefacedbaddecaf888", "",
+         "d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a72"
+            + "1c3c0c95956809532fcf0e2449a6b525b16aedf5aa0de657ba637b391aafd255",
+         "42831ec2217774244b7221b784d0d49ce3aa212f2c02a4e035c17e2329aca12e"
+            + "21d514b25466931c7d8f6a5aac84aa051ba30b396a0aac973d58e091473f5985"
+            + "4d5c2af327cd64a62cf35abd2ba6fab4"},
+        {"feffe9928665731c6d6a8f9467308308", "cafebabefacedbaddecaf888",
+         "feedfacedeadbeeffeedfacedeadbeefabaddad2",
+         "d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a72"
+            + "1c3c0c95956809532fcf0e2449a6b525b16aedf5aa0de657ba637b39",
+         "42831ec2217774244b7221b784d0d49ce3aa212f2c02a4e035c17e2329aca12e"
+            + "21d514b25466931c7d8f6a5aac84aa051ba30b396a0aac973d58e091"
+            + "5bc94fbc3221a5db94fae95ae7121a47"}
+    };
+
+    // {kek, key data, wrapped}
+    private static final String[][] KEY_WRAP = {
+        {"000102030405060708090a0b0c0d0e0f", "00112233445566778899aabbccddeeff",
+         "1fa68b0a8112b447aef34bd8fb5a7b829d3e862371d2cfe5"}
+    };
+
+    private KnownAnswer() {}
+
+    public static List<String> failures()
+    {
+        return failures(BlockEngines.get());
+    }
+
+    public static List<String> failures(BlockEngine engine)
+    {
+        // Returns a description of every vector that didn't match, so an empty list means all passed.
+        // Everything runs through the given engine, never the one BlockEngines picked.
+        List<String> failed = new ArrayList<String>();
+        for(String[] v : BLOCK)
+        {
+            Key key = new Key(hex.parseHex(v[0]));
+            byte[] pt = hex.parseHex(v[1]);
+            byte[] ct = hex.parseHex(v[2]);
+            byte[] out = new byte[16];
+            engine.encryptBlocks(key, pt, 0, out, 0, 1);
+            check(failed, "FIPS-197 encrypt " + v[0], ct, out);
+            engine.decryptBlocks(key, ct, 0, out, 0, 1);
+            check(failed, "FIPS-197 decrypt " + v[0], pt, out);
+        }
+        for(String[] v : CTR)
+        {
+            Key key = new Key(hex.parseHex(v[0]));
+            byte[] buf = hex.parseHex(v[2]);
+            AES128.cryptCTR(engine, key, hex.parseHex(v[1]), 0, buf, 0, buf.length);
+            check(failed, "SP 800-38A CTR", hex.parseHex(v[3]), buf);
+        }
+        for(String[] v : GCM)
+        {
+            Key key = new Key(hex.parseHex(v[0]));
+            byte[] iv = hex.parseHex(v[1]);
+            byte[] aad = hex.parseHex(v[2]);
+            byte[] pt = hex.parseHex(v[3]);
+            byte[] expected = hex.parseHex(v[4]);
+            check(failed, "GCM encrypt " + v[0], expected, AES128.gcmEncrypt(engine, key, iv, aad, pt));
+            check(failed, "GCM decrypt " + v[0], pt, AES128.gcmDecrypt(engine, key, iv, aad, expected));
+        }
+        for(String[] v : KEY_WRAP)
+        {
+            Key kek = new Key(hex.parseHex(v[0]));
+            byte[] keyData = hex.parseHex(v[1]);
+            byte[] wrapped = hex.parseHex(v[2]);
+            check(failed, "RFC 3394 wrap", wrapped, KeyWrap.wrapAll(engine, kek, new byte[][] {keyData})[0]);
+            check(failed, "RFC 3394 unwrap", keyData, KeyWrap.unwrapAll(engine, kek, new byte[][] {wrapped})[0]);
+        }
+        return failed;
+    }
+
+    private static void check(List<String> failed, String name, byte[] expected, byte[] actual)
+    {
+        if(!Arrays.equals(expected, actual))
+        {
+            failed.add(name + ": expected " + hex.formatHex(expected)
+                + " but got " + (actual == null ? "null" : hex.formatHex(actual)));
+        }
+    }
+}
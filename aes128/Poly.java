@@ -100,4 +100,34 @@ public abstract class Poly
         
         return prod;
     }
+    
+    public static void gfMult128(long[] x, long hHi, long hLo)
+    {
+        /* Multiplication in GF(2^128), which GCM mode uses to compute its
+         * authentication tag (see NIST SP 800-38D, Algorithm 1). It's the same
+         * idea as polyMult above, just with 128 bit "bytes" stored in two longs
+         * and the modulus x^128 + x^7 + x^2 + x + 1. One catch: GCM numbers its
+         * bits the other way around, so instead of shifting left and checking for
+         * overflow we shift RIGHT and check the bit that falls off the end.
+         * x = x * h, with x[0] holding the high 64 bits.
+         *
+         * There are no ifs on the bits: -bit is either all ones or all zeros, so
+         * ANDing with it picks the value or 0. Branches that depend on H (i.e. on
+         * the key) leak it through timing, and with a new key for every message
+         * they're mispredicted about half the time, which made this the slowest
+         * part of GCM. */
+        long zHi = 0, zLo = 0;
+        long vHi = hHi, vLo = hLo;
+        for(int i = 0; i < 128; i++)
+        {
+            long bit = i < 64 ? (x[0] >>> (63 - i)) & 1 : (x[1] >>> (127 - i)) & 1;
+            zHi ^= vHi & -bit;
+            zLo ^= vLo & -bit;
+            long carry = vLo & 1;
+            vLo = (vLo >>> 1) | (vHi << 63);
+            vHi = (vHi >>> 1) ^ (0xE100000000000000L & -carry); // the modulus, bit-reversed
+        }
+        x[0] = zHi;
+        x[1] = zLo;
+    }
 }
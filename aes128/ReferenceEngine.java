@@ -0,0 +1,32 @@
+package aes128;
+
+/* This project's own AES, one StateArray at a time (through the calling
+ * thread's CipherContext). Always available, and the one to read. */
+public class ReferenceEngine implements BlockEngine
+{
+    @Override
+    public String name()
+    {
+        return "reference";
+    }
+
+    @Override
+    public void encryptBlocks(Key key, byte[] in, int inOff, byte[] out, int outOff, int numBlocks)
+    {
+        CipherContext ctx = CipherContext.get();
+        for(int i = 0; i < numBlocks; i++)
+        {
+            ctx.encryptBlock(key, in, inOff + 16 * i, out, outOff + 16 * i);
+        }
+    }
+
+    @Override
+    public void decryptBlocks(Key key, byte[] in, int inOff, byte[] out, int outOff, int numBlocks)
+    {
+        CipherContext ctx = CipherContext.get();
+        for(int i = 0; i < numBlocks; i++)
+        {
+            ctx.decryptBlock(key, in, inOff + 16 * i, out, outOff + 16 * i);
+        }
+    }
+}
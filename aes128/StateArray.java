@@ -2,6 +2,10 @@ package aes128;
 
 public class StateArray extends ByteMatrix
 {    
+    // scratch copy for shiftRows/mixColumns, reused so a block can be
+    // encrypted without creating any new arrays
+    private final int[][] temp = new int[4][4];
+    
     public StateArray(String cleartext)
     {
         super(cleartext);
@@ -107,13 +111,11 @@ public class StateArray extends ByteMatrix
     {
         // Round 0 uses words 0 1 2 3 from key schedule
         // Round 10 uses 40 41 42 43
-        int[] temp = new int[4];
         for(int i = 0; i < 4; i++)
         {
-            temp = key.getRoundKeyWord(roundNum * 4 + i);
             for(int j = 0; j < 4; j++)
             {
-                setByte(j, i, this.getByte(j, i) ^ temp[j]);
+                setByte(j, i, this.getByte(j, i) ^ key.getRoundKeyByte(roundNum * 4 + i, j));
             }
         }
     }
@@ -147,7 +149,7 @@ public class StateArray extends ByteMatrix
         // third row shifted two bytes left
         // fourth row shifted three bytes
         
-        int[][] temp = new int[4][4]; // need to make copy because of swaps
+        // need to make copy because of swaps
         
         for(int i = 0; i < 4; i++)
         {
@@ -174,7 +176,6 @@ public class StateArray extends ByteMatrix
     
     public void invShiftRows()
     {
-        int[][] temp = new int[4][4];
         for(int i = 0; i < 4; i++)
         {
             for(int j = 0; j < 4; j++)
@@ -220,7 +221,7 @@ public class StateArray extends ByteMatrix
          */
         
         
-        int[][] temp = new int[4][4]; // need to make copy because of swaps
+        // need to make copy because of swaps
         
         for(int i = 0; i < 4; i++)
         {
@@ -243,7 +244,6 @@ public class StateArray extends ByteMatrix
     {
         // same algorithm as regular mixColumns except different coefficients
         
-        int[][] temp = new int[4][4];
         for(int i = 0; i < 4; i++)
         {
             for(int j = 0; j < 4; j++)